@@ -0,0 +1,438 @@
+package com.bme.bench;
+
+import com.bme.logo.*;
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+* <p>Bench measures the throughput and allocation rate of the
+* interpreter, the parser and the list operations, so that
+* performance changes can be checked against a baseline.</p>
+*
+* <p>Each benchmark is warmed up and then run for a number of
+* timed iterations. Results report operations per second with
+* the standard deviation across iterations, the average time per
+* operation and the bytes allocated per operation. Allocation
+* is measured with the per-thread allocation counter of the
+* HotSpot JVM, and is reported as unavailable elsewhere.</p>
+*
+* <pre>
+* java -cp dist/Logo.jar:build com.bme.bench.Bench [options] [pattern...]
+*   -w seconds   warmup time per benchmark (default 2)
+*   -i count     measured iterations per benchmark (default 5)
+*   -t seconds   time per measured iteration (default 1)
+*   -o file      write results to a file, for use as a baseline
+*   -b file      compare results against a baseline file
+*   -l           list the benchmarks and exit
+* </pre>
+*
+* <p>Patterns are regular expressions, and only benchmarks whose
+* names contain a match are run.</p>
+*
+* @author John Earnest
+**/
+
+public class Bench {
+
+	/**
+	* A Benchmark is a single operation to be measured repeatedly.
+	**/
+	public static abstract class Benchmark {
+		/** The name of this benchmark. **/
+		public final String name;
+
+		/**
+		* Construct a new Benchmark with a given name.
+		*
+		* @param name the name of this benchmark.
+		**/
+		public Benchmark(String name) {
+			this.name = name;
+		}
+
+		/** Prepare any state this benchmark needs, before it is warmed up. **/
+		public void setup() {}
+
+		/** Release or restore any state changed by {@link #setup}. **/
+		public void teardown() {}
+
+		/**
+		* Perform the operation once.
+		*
+		* @return a result which is consumed so the operation can't be optimized away.
+		**/
+		public abstract Object run();
+	}
+
+	/**
+	* The measurements of a Benchmark.
+	**/
+	public static class Result {
+		/** The name of the benchmark. **/
+		public final String name;
+		/** The mean number of operations per second. **/
+		public final double ops;
+		/** The standard deviation of operations per second across iterations. **/
+		public final double error;
+		/** The mean number of bytes allocated per operation, or -1 if unknown. **/
+		public final double bytes;
+
+		Result(String name, double ops, double error, double bytes) {
+			this.name  = name;
+			this.ops   = ops;
+			this.error = error;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final String FIB =
+		"to fib :n\n" +
+		"	if less? :n 2 [ output 1 ]\n" +
+		"	output sum fib difference :n 1 fib difference :n 2\n" +
+		"end\n";
+
+	private static final String LOOP =
+		"to loop :x\n" +
+		"	if equal? :x 0 [ stop ]\n" +
+		"	loop difference :x 1\n" +
+		"end\n";
+
+	// results are folded into this so the JIT can't discard them:
+	private static volatile int sink;
+
+	private final long warmup;
+	private final int  iterations;
+	private final long time;
+
+	/**
+	* Construct a new Bench.
+	*
+	* @param warmup the milliseconds to spend warming up each benchmark.
+	* @param iterations the number of iterations to measure.
+	* @param time the milliseconds each measured iteration runs for.
+	**/
+	public Bench(long warmup, int iterations, long time) {
+		this.warmup     = warmup;
+		this.iterations = iterations;
+		this.time       = time;
+	}
+
+	/**
+	* Return the standard set of benchmarks.
+	**/
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> ret = new ArrayList<Benchmark>();
+
+		ret.add(new Program("interp.fib", FIB, "make 'r fib 15"));
+		ret.add(new Program("interp.fib.interpreted", FIB, "make 'r fib 15") {
+			boolean compile;
+			public void setup() {
+				compile = Interpreter.COMPILE;
+				Interpreter.COMPILE = false;
+				super.setup();
+			}
+			public void teardown() {
+				Interpreter.COMPILE = compile;
+			}
+		});
+		ret.add(new Program("interp.tail", LOOP, "loop 5000"));
+
+		ret.add(new Program("trace.buffer", FIB, "make 'r fib 15") {
+			TraceBuffer buffer;
+			final TraceBuffer.Consumer consumer = new TraceBuffer.Consumer() {
+				public void event(TraceBuffer.Event e) { sink += e.procedure(); }
+			};
+			public void setup() {
+				super.setup();
+				buffer = new TraceBuffer(1 << 16);
+				env.addTraceBuffer(buffer);
+			}
+			public Object run() {
+				super.run();
+				return buffer.drain(consumer);
+			}
+		});
+		ret.add(new Program("trace.tracer", FIB, "make 'r fib 15") {
+			public void setup() {
+				super.setup();
+				env.addTracer(new Tracer() {
+					public void call(String name, Map<LAtom, LAtom> args, boolean tail) { sink += args.size(); }
+				});
+			}
+		});
+		ret.add(new Program("trace.metrics", FIB, "make 'r fib 15") {
+			public void setup() {
+				super.setup();
+				env.metrics();
+			}
+		});
+
+		ret.add(new Benchmark("list.fput") {
+			public Object run() {
+				LList l = new LList();
+				for(int z = 0; z < 500; z++) { l = l.fput(new LNumber(z)); }
+				return l;
+			}
+		});
+		ret.add(new Benchmark("list.butfirst") {
+			LList list;
+			public void setup() { list = numbers(500); }
+			public Object run() {
+				LList l = list;
+				while(l.size() > 0) { l = l.butFirst(); }
+				return l;
+			}
+		});
+		ret.add(new Benchmark("list.join") {
+			LList a, b;
+			public void setup() {
+				a = numbers(500);
+				b = numbers(500);
+			}
+			public Object run() {
+				return a.join(b);
+			}
+		});
+		ret.add(new Benchmark("list.flatten") {
+			LList list;
+			public void setup() {
+				list = new LList();
+				for(int z = 0; z < 50; z++) { list = list.fput(new LList().fput(numbers(10)).fput(numbers(10))); }
+			}
+			public Object run() {
+				return list.flatten();
+			}
+		});
+
+		ret.add(new Benchmark("parse.large") {
+			String source;
+			public void setup() {
+				StringBuilder s = new StringBuilder();
+				for(int z = 0; z < 200; z++) {
+					String name = name(z);
+					s.append("to ").append(name).append(" :x :y\n");
+					s.append("\tif less? :x 1 [ output :y ]\n");
+					s.append("\tmake 'y sum :y product :x 2\n");
+					s.append("\toutput ").append(name).append(" difference :x 1 :y\n");
+					s.append("end\n");
+					s.append("print ").append(name).append(" 10 [ 1 2 [ 3 4 ] ]\n");
+				}
+				source = s.toString();
+			}
+			public Object run() {
+				return Parser.parse(source);
+			}
+		});
+
+		ret.add(new Benchmark("env.kernel") {
+			public Object run() {
+				return Primitives.kernel();
+			}
+		});
+
+		return ret;
+	}
+
+	/**
+	* Warm up and measure a Benchmark.
+	*
+	* @param b the Benchmark to run.
+	**/
+	public Result measure(Benchmark b) {
+		b.setup();
+		try {
+			loop(b, warmup);
+			double[] ops = new double[iterations];
+			long count = 0;
+			long alloc = 0;
+			for(int z = 0; z < iterations; z++) {
+				long before = allocated();
+				long start  = System.nanoTime();
+				long n      = loop(b, time);
+				long end    = System.nanoTime();
+				long after  = allocated();
+				ops[z] = n * 1e9 / (end - start);
+				count += n;
+				alloc += after - before;
+			}
+			double mean = 0;
+			for(double o : ops) { mean += o; }
+			mean /= ops.length;
+			double var = 0;
+			for(double o : ops) { var += (o - mean) * (o - mean); }
+			double error = ops.length > 1 ? Math.sqrt(var / (ops.length - 1)) : 0;
+			double bytes = allocated() < 0 ? -1 : (double)alloc / count;
+			return new Result(b.name, mean, error, bytes);
+		}
+		finally {
+			b.teardown();
+		}
+	}
+
+	// run a benchmark repeatedly for some number of milliseconds
+	// and return the number of operations performed:
+	private static long loop(Benchmark b, long millis) {
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long count = 0;
+		int batch = 1;
+		while(true) {
+			long start = System.nanoTime();
+			for(int z = 0; z < batch; z++) { sink += System.identityHashCode(b.run()); }
+			long now = System.nanoTime();
+			count += batch;
+			if (now >= deadline) { return count; }
+			// check the clock roughly every millisecond:
+			if (now - start < 1000000L && batch < (1 << 20)) { batch *= 2; }
+		}
+	}
+
+	private static final Method allocatedBytes = allocatedBytes();
+
+	private static Method allocatedBytes() {
+		try {
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			if (!c.isInstance(ManagementFactory.getThreadMXBean())) { return null; }
+			return c.getMethod("getThreadAllocatedBytes", long.class);
+		}
+		catch(Exception e) {
+			return null;
+		}
+	}
+
+	// the bytes allocated by the current thread so far, or -1:
+	private static long allocated() {
+		if (allocatedBytes == null) { return -1; }
+		try {
+			return (Long)allocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+		}
+		catch(Exception e) {
+			return -1;
+		}
+	}
+
+	private static LList numbers(int count) {
+		LList ret = new LList();
+		for(int z = count - 1; z >= 0; z--) { ret = ret.fput(new LNumber(z)); }
+		return ret;
+	}
+
+	// Logo names may not contain digits:
+	private static String name(int n) {
+		StringBuilder ret = new StringBuilder("proc");
+		do {
+			ret.append((char)('a' + n % 26));
+			n /= 26;
+		} while(n > 0);
+		return ret.toString();
+	}
+
+	public static void main(String[] a) throws IOException {
+		long warmup = 2000;
+		int iterations = 5;
+		long time = 1000;
+		String output = null;
+		String baseline = null;
+		boolean list = false;
+		List<Pattern> patterns = new ArrayList<Pattern>();
+
+		for(int z = 0; z < a.length; z++) {
+			if      ("-w".equals(a[z]) && z + 1 < a.length) { warmup     = (long)(Double.parseDouble(a[++z]) * 1000); }
+			else if ("-i".equals(a[z]) && z + 1 < a.length) { iterations = Integer.parseInt(a[++z]); }
+			else if ("-t".equals(a[z]) && z + 1 < a.length) { time       = (long)(Double.parseDouble(a[++z]) * 1000); }
+			else if ("-o".equals(a[z]) && z + 1 < a.length) { output     = a[++z]; }
+			else if ("-b".equals(a[z]) && z + 1 < a.length) { baseline   = a[++z]; }
+			else if ("-l".equals(a[z]))                     { list       = true; }
+			else { patterns.add(Pattern.compile(a[z])); }
+		}
+		if (iterations < 1) { iterations = 1; }
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for(Benchmark b : benchmarks()) {
+			boolean match = patterns.isEmpty();
+			for(Pattern p : patterns) { match |= p.matcher(b.name).find(); }
+			if (match) { benchmarks.add(b); }
+		}
+		if (list) {
+			for(Benchmark b : benchmarks) { System.out.println(b.name); }
+			return;
+		}
+
+		Map<String, Result> base = baseline == null ? new HashMap<String, Result>() : read(new File(baseline));
+		Bench bench = new Bench(warmup, iterations, time);
+		List<Result> results = new ArrayList<Result>();
+
+		System.out.format("%-24s %14s %12s %12s %12s %8s%n", "benchmark", "ops/s", "error", "ns/op", "B/op", "vs base");
+		for(Benchmark b : benchmarks) {
+			Result r = bench.measure(b);
+			results.add(r);
+			Result old = base.get(r.name);
+			System.out.format("%-24s %14.1f %12.1f %12.1f %12s %8s%n",
+				r.name, r.ops, r.error, 1e9 / r.ops,
+				r.bytes < 0 ? "-" : String.format("%.1f", r.bytes),
+				old == null ? "" : String.format("%.2fx", r.ops / old.ops)
+			);
+		}
+		if (output != null) { write(new File(output), results); }
+	}
+
+	// results are kept as tab-separated lines of name, ops/s, error and B/op:
+	private static void write(File file, List<Result> results) throws IOException {
+		PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+		try {
+			for(Result r : results) {
+				out.format(Locale.ROOT, "%s\t%f\t%f\t%f%n", r.name, r.ops, r.error, r.bytes);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static Map<String, Result> read(File file) throws IOException {
+		Map<String, Result> ret = new HashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			for(String line = in.readLine(); line != null; line = in.readLine()) {
+				String[] f = line.split("\t");
+				if (f.length < 4) { continue; }
+				ret.put(f[0], new Result(f[0],
+					Double.parseDouble(f[1]),
+					Double.parseDouble(f[2]),
+					Double.parseDouble(f[3])
+				));
+			}
+		}
+		finally {
+			in.close();
+		}
+		return ret;
+	}
+}
+
+// a benchmark which runs a Logo program in an environment
+// where some procedures have already been defined:
+class Program extends Bench.Benchmark {
+	private final String definitions;
+	private final LList code;
+	Environment env;
+
+	Program(String name, String definitions, String program) {
+		super(name);
+		this.definitions = definitions;
+		this.code        = Parser.parse(program);
+	}
+
+	public void setup() {
+		env = Primitives.kernel();
+		env.limits().load = -1;
+		Interpreter.run(Parser.parse(definitions), env);
+	}
+
+	public Object run() {
+		Interpreter.run(code, env);
+		return env;
+	}
+}
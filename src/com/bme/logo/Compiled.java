@@ -0,0 +1,33 @@
+package com.bme.logo;
+
+/**
+* Compiled is the base class of the JVM classes which the
+* Compiler generates at runtime for hot procedures. It is
+* public only so that those classes, which are defined
+* by their own ClassLoader, are able to extend it.
+* It is not intended to be used or extended directly.
+*
+* @author John Earnest
+**/
+
+public abstract class Compiled {
+
+	protected Compiled() {}
+
+	/**
+	* Invoke a compiled procedure.
+	* Any RuntimeException thrown by this method indicates that
+	* the compiled code has given up, and the procedure must be
+	* run by the Interpreter instead.
+	* Every procedure body and loop iteration decrements the first
+	* element of the ticks array. When it reaches zero, the procedure
+	* running stores its scope budget and its arguments in the
+	* following elements and gives up.
+	*
+	* @param budget the number of scopes the procedure may use before overflowing the stack.
+	* @param ticks the number of ticks the procedure may run, followed by room for its arguments.
+	* @param args the argument values of the procedure, all of which must be LNumbers.
+	* @return the result of the procedure.
+	**/
+	public abstract int invoke(int budget, int[] ticks, LAtom[] args);
+}
@@ -0,0 +1,785 @@
+package com.bme.logo;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* <p>The Compiler translates hot procedures into JVM classes,
+* which are defined at runtime by a ClassLoader of their own so
+* that they can be unloaded when they are no longer needed.</p>
+*
+* <p>Only procedures which work entirely with Numbers are compiled.
+* Their bodies may consist of 'output', 'if' and 'unless' statements,
+* and their expressions may refer to their own arguments and call
+* the kernel arithmetic and comparison primitives or other procedures
+* which meet the same requirements. A procedure which calls itself
+* via 'output' is compiled into a loop. Compiled procedures
+* never have side effects and never pause, so whenever compiled code
+* encounters anything it cannot handle, such as a division by zero,
+* it is abandoned and the Interpreter runs the call from the beginning
+* instead. The compiled code records the procedures it was compiled
+* against, and is discarded if any of them are redefined.</p>
+*
+* <p>Every procedure body and loop iteration run by compiled code is
+* charged as a tick, and compiled code returns to the Interpreter after
+* MAX_TICKS of them, so that execution limits, pauses and Scheduler
+* quanta take effect during long loops. If the call it was given
+* is still looping, the Interpreter carries on from its current
+* arguments, and will soon call the compiled code again.
+* Compiled code which gives up for any other reason MAX_FAILURES
+* times is abandoned for good, as is code which cannot be compiled.</p>
+*
+* @author John Earnest
+**/
+
+class Compiler {
+
+	private Compiler() {}
+
+	// the scope budget used when the recursion limit is disabled:
+	private static final int MAX_BUDGET = 1 << 14;
+
+	// the ticks compiled code may run before returning to the Interpreter:
+	private static final int MAX_TICKS = 1 << 16;
+
+	// the number of times compiled code may give up before it is abandoned:
+	private static final int MAX_FAILURES = 8;
+
+	// limits on the size of a compiled group of procedures:
+	private static final int MAX_PROCEDURES = 64;
+	private static final int MAX_LOCALS     = 250;
+	private static final int MAX_CODE       = 32768;
+
+	private static final AtomicInteger classes = new AtomicInteger();
+
+	/**
+	* Try to run a procedure invocation whose arguments
+	* have all been collected as compiled code.
+	*
+	* @param e the Environment making the call.
+	* @param f the invocation.
+	* @return true if the procedure was run and its result delivered.
+	**/
+	static boolean call(Environment e, Func f) {
+		LList code = f.code;
+		Jit jit = code.jit;
+		if (jit == null) {
+			if (code.invocations - code.discarded < Interpreter.COMPILE_THRESHOLD) { return false; }
+			jit = code.jit = compile(e, code);
+		}
+		if (jit == Jit.FAILED) { return false; }
+		for(int z = 0; z < f.count; z++) {
+			if (!(f.vals[z] instanceof LNumber)) { return false; }
+		}
+		if (jit.get() != e || jit.version != e.version) {
+			if (!jit.valid(e)) {
+				// something this code depends on has been redefined:
+				code.jit = null;
+				code.discarded = code.invocations;
+				return false;
+			}
+			jit = code.jit = new Jit(jit, e);
+		}
+
+		int budget = MAX_BUDGET;
+		if (e.limits.frames != 0) {
+			budget = Math.min(budget, e.limits.frames - e.scopes.size() + 1);
+		}
+		// the remaining ticks, followed by the scope budget and
+		// arguments of the procedure which ran out of them:
+		int[] ticks = new int[2 + jit.arity];
+		ticks[0] = MAX_TICKS;
+		if (e.limits.ticks > -1) {
+			ticks[0] = (int)Math.min(ticks[0], e.limits.ticks - e.ticks);
+			if (ticks[0] <= 0) { return false; }
+		}
+		int allowed = ticks[0];
+		int r;
+		try { r = jit.code.invoke(budget, ticks, f.vals); }
+		catch(RuntimeException ex)   { return bail(e, f, jit, ticks, allowed, budget); }
+		catch(StackOverflowError ex) { return bail(e, f, jit, ticks, allowed, budget); }
+		charge(e, allowed - ticks[0]);
+		e.atoms++;
+		e.value(new LNumber(r));
+		return true;
+	}
+
+	private static boolean bail(Environment e, Func f, Jit jit, int[] ticks, int allowed, int budget) {
+		charge(e, allowed - Math.max(ticks[0], 0));
+		if (ticks[0] > 0) {
+			// the compiled code could not handle this call:
+			if (++jit.failures >= MAX_FAILURES) { f.code.jit = Jit.FAILED; }
+			return false;
+		}
+		if (ticks[1] == budget) {
+			// the procedure itself was still looping, and nothing
+			// it has done is visible, so continue from where it was:
+			for(int z = 0; z < f.count; z++) {
+				f.vals[z] = new LNumber(ticks[2 + z]);
+			}
+			e.atoms += f.count;
+		}
+		return false;
+	}
+
+	private static void charge(Environment e, int ticks) {
+		e.ticks += ticks;
+		if (e.limits.deadline > -1 && System.currentTimeMillis() > e.limits.deadline) {
+			throw new RuntimeError(e, RuntimeError.Type.OutOfTime);
+		}
+	}
+
+	private static Jit compile(Environment e, LList code) {
+		String name = "com/bme/logo/generated/Procedures" + classes.incrementAndGet();
+		Group g = new Group(e, name);
+		try {
+			g.procedure(code);
+			for(int z = 0; z < g.procedures.size(); z++) { g.method(z); }
+			g.check();
+		}
+		catch(Uncompilable u) { return Jit.FAILED; }
+
+		byte[] bytes = g.file.toBytes("com/bme/logo/Compiled", g.entry(code), Group.arity(code));
+		try {
+			Class<?> c = new Loader().define(name.replace('/', '.'), bytes);
+			Compiled compiled = (Compiled)c.getConstructor().newInstance();
+			return new Jit(compiled, g.names(), g.targets(), g.arity(), e, e.version);
+		}
+		catch(Exception ex)     { return Jit.FAILED; }
+		catch(LinkageError ex)  { return Jit.FAILED; }
+	}
+
+	// true if a target is a given primitive from the language kernel.
+	static boolean kernel(LList target, String name) {
+		if (!Primitives.prim(target)) { return false; }
+		LWord w = (LWord)target.first();
+		return w.value.equals(name) && w.getClass().getEnclosingClass() == Primitives.class;
+	}
+
+	private static class Uncompilable extends RuntimeException {
+		static final long serialVersionUID = 1;
+	}
+
+	// a group of procedures compiled together as static
+	// methods of a single class, named 'p' and their index.
+	private static class Group {
+		final Environment env;
+		final ClassFile file;
+		final List<LList> procedures = new ArrayList<LList>();
+		final Map<LList, Integer> index = new IdentityHashMap<LList, Integer>();
+		final Map<String, LWord> words = new LinkedHashMap<String, LWord>();
+		final Map<String, LList> bound = new HashMap<String, LList>();
+		final Set<String> arguments = new HashSet<String>();
+
+		// the method currently being compiled. its locals are
+		// the scope budget, the ticks array and its arguments,
+		// followed by the ticks it has left, which are written
+		// back to the array around calls and returns:
+		LList current;
+		Bytecode code;
+		Label start;
+		Label exhausted;
+		int locals;
+		int left;
+
+		Group(Environment env, String name) {
+			this.env  = env;
+			this.file = new ClassFile(name);
+		}
+
+		LWord[] names() {
+			return words.values().toArray(new LWord[words.size()]);
+		}
+
+		LList[] targets() {
+			LList[] ret = new LList[words.size()];
+			int z = 0;
+			for(String name : words.keySet()) { ret[z++] = bound.get(name); }
+			return ret;
+		}
+
+		// the method which the invoke() method of this class should call:
+		String entry(LList code) {
+			return "p" + index.get(code);
+		}
+
+		// the index of a procedure's method, adding it to the group if necessary:
+		int procedure(LList target) {
+			Integer i = index.get(target);
+			if (i != null) { return i; }
+			if (procedures.size() >= MAX_PROCEDURES) { throw new Uncompilable(); }
+			if (arity(target) + 2 > MAX_LOCALS)      { throw new Uncompilable(); }
+			for(int z = 0; z < arity(target); z++) {
+				if (!(target.arguments.item(z) instanceof LWord)) { throw new Uncompilable(); }
+				arguments.add(((LWord)target.arguments.item(z)).value);
+			}
+			index.put(target, procedures.size());
+			procedures.add(target);
+			return procedures.size()-1;
+		}
+
+		static int arity(LList target) {
+			return target.arguments == null ? 0 : target.arguments.size();
+		}
+
+		// the most arguments taken by any procedure in the group:
+		int arity() {
+			int ret = 0;
+			for(LList p : procedures) { ret = Math.max(ret, arity(p)); }
+			return ret;
+		}
+
+		// a procedure may not shadow any name the group calls,
+		// or calls made while it is running would resolve differently:
+		void check() {
+			for(String name : arguments) {
+				if (words.containsKey(name)) { throw new Uncompilable(); }
+			}
+		}
+
+		void method(int z) {
+			current = procedures.get(z);
+			code    = new Bytecode(file);
+			start   = new Label();
+			locals  = 2 + arity(current);
+
+			// bail out if the blocks of this procedure, along with
+			// the scope 'output' uses, could overflow the stack:
+			Label enter = new Label();
+			code.op(Bytecode.ILOAD, 0, 1);
+			int limit = code.size() + 1;
+			code.op2(Bytecode.SIPUSH, 0, 1);
+			code.jump(Bytecode.IF_ICMPGT, enter, -2);
+			bail();
+			code.mark(enter);
+
+			// charge a tick for the body, and for every iteration
+			// of a loop. when they run out record our scope budget
+			// and arguments and give up:
+			left      = locals++;
+			exhausted = new Label();
+			load();
+			code.iinc(left, -1);
+			code.op(Bytecode.ILOAD, left, 1);
+			code.jump(Bytecode.IFLE, exhausted, -1);
+			code.mark(start);
+
+			int max = block(current, 0, true) + 1;
+
+			code.mark(exhausted);
+			store();
+			for(int a = -1; a < arity(current); a++) {
+				code.op(Bytecode.ALOAD, 1, 1);
+				code.constant(a + 2);
+				code.op(Bytecode.ILOAD, a < 0 ? 0 : a + 2, 1);
+				code.op(Bytecode.IASTORE, -3);
+			}
+			bail();
+			if (max > Short.MAX_VALUE) { throw new Uncompilable(); }
+			code.patch2(limit, max);
+			if (code.size() > MAX_CODE || locals > MAX_LOCALS) { throw new Uncompilable(); }
+			file.method(ClassFile.ACC_STATIC, "p" + z, ClassFile.descriptor(arity(current)), code, locals);
+		}
+
+		// compile a list of statements, returning the deepest block nesting within it:
+		int block(LList body, int depth, boolean top) {
+			int max = depth;
+			int z = 0;
+			while(z < body.size()) {
+				LList target = call(body.item(z));
+				if (kernel(target, "output")) {
+					z = output(body, z+1, depth);
+					return max;
+				}
+				boolean unless = kernel(target, "unless");
+				if (!unless && !kernel(target, "if")) { throw new Uncompilable(); }
+				Label skip = new Label();
+				z = condition(body, z+1, depth, skip, unless);
+				if (z >= body.size() || !(body.item(z) instanceof LList)) { throw new Uncompilable(); }
+				max = Math.max(max, block((LList)body.item(z), depth + 1, false));
+				code.mark(skip);
+				z++;
+			}
+			// a procedure which runs out of code produces no result:
+			if (top) { throw new Uncompilable(); }
+			return max;
+		}
+
+		int output(LList body, int z, int depth) {
+			if (z < body.size() && call(body.item(z)) == current) {
+				// a self tail call rebinds the arguments and starts over:
+				int arity = arity(current);
+				z++;
+				for(int a = 0; a < arity; a++) { z = expression(body, z, depth); }
+				for(int a = arity; a > 0; a--) { code.op(Bytecode.ISTORE, a + 1, -1); }
+				code.iinc(left, -1);
+				code.op(Bytecode.ILOAD, left, 1);
+				code.jump(Bytecode.IFLE, exhausted, -1);
+				code.jump(Bytecode.GOTO, start, 0);
+				return z;
+			}
+			z = expression(body, z, depth);
+			store();
+			code.op(Bytecode.IRETURN, -1);
+			return z;
+		}
+
+		// read the ticks left from the array:
+		void load() {
+			code.op(Bytecode.ALOAD, 1, 1);
+			code.op(Bytecode.ICONST_0, 1);
+			code.op(Bytecode.IALOAD, -1);
+			code.op(Bytecode.ISTORE, left, -1);
+		}
+
+		// write the ticks left to the array:
+		void store() {
+			code.op(Bytecode.ALOAD, 1, 1);
+			code.op(Bytecode.ICONST_0, 1);
+			code.op(Bytecode.ILOAD, left, 1);
+			code.op(Bytecode.IASTORE, -3);
+		}
+
+		// compile a condition which branches to a label if it is false, or true for 'unless':
+		int condition(LList body, int z, int depth, Label label, boolean when) {
+			LList target = z < body.size() ? call(body.item(z)) : null;
+			int op = -1;
+			if      (kernel(target, "less?"))    { op = when ? Bytecode.IF_ICMPLT : Bytecode.IF_ICMPGE; }
+			else if (kernel(target, "greater?")) { op = when ? Bytecode.IF_ICMPGT : Bytecode.IF_ICMPLE; }
+			else if (kernel(target, "equal?"))   { op = when ? Bytecode.IF_ICMPEQ : Bytecode.IF_ICMPNE; }
+			if (op < 0) {
+				z = expression(body, z, depth);
+				code.jump(when ? Bytecode.IFNE : Bytecode.IFEQ, label, -1);
+				return z;
+			}
+			z = expression(body, z+1, depth);
+			z = expression(body, z,   depth);
+			code.jump(op, label, -2);
+			return z;
+		}
+
+		// compile an expression which produces a Number, returning the index after it:
+		int expression(LList body, int z, int depth) {
+			if (z >= body.size()) { throw new Uncompilable(); }
+			LAtom a = body.item(z);
+			if (a instanceof LNumber) {
+				code.constant(((LNumber)a).value);
+				return z+1;
+			}
+			if (!(a instanceof LWord)) { throw new Uncompilable(); }
+			LWord word = (LWord)a;
+			if (word.type == LWord.Type.Value) {
+				// only a procedure's own arguments are visible to compiled code:
+				for(int x = 0; x < arity(current); x++) {
+					if (word.equals(current.arguments.item(x))) {
+						code.op(Bytecode.ILOAD, x+2, 1);
+						return z+1;
+					}
+				}
+				throw new Uncompilable();
+			}
+
+			LList target = call(word);
+			if (kernel(target, "negate")) {
+				z = expression(body, z+1, depth);
+				code.op(Bytecode.INEG, 0);
+				return z;
+			}
+			int op = -1;
+			if      (kernel(target, "sum"))        { op = Bytecode.IADD; }
+			else if (kernel(target, "difference")) { op = Bytecode.ISUB; }
+			else if (kernel(target, "product"))    { op = Bytecode.IMUL; }
+			else if (kernel(target, "quotient"))   { op = Bytecode.IDIV; }
+			else if (kernel(target, "remainder"))  { op = Bytecode.IREM; }
+			if (op == Bytecode.IREM) {
+				// like the kernel primitive, negative remainders are offset by the divisor:
+				int divisor = locals++;
+				z = expression(body, z+1, depth);
+				z = expression(body, z,   depth);
+				Label positive = new Label();
+				code.op(Bytecode.ISTORE, divisor, -1);
+				code.op(Bytecode.ILOAD,  divisor,  1);
+				code.op(Bytecode.IREM, -1);
+				code.op(Bytecode.DUP,   1);
+				code.jump(Bytecode.IFGE, positive, -1);
+				code.op(Bytecode.ILOAD, divisor, 1);
+				code.op(Bytecode.IADD, -1);
+				code.mark(positive);
+				return z;
+			}
+			if (op >= 0) {
+				z = expression(body, z+1, depth);
+				z = expression(body, z,   depth);
+				code.op(op, -1);
+				return z;
+			}
+			if (target == null || Primitives.prim(target)) { throw new Uncompilable(); }
+
+			// a call to another procedure uses one scope, plus one for each enclosing block:
+			int callee = procedure(target);
+			int arity  = arity(target);
+			store();
+			code.op(Bytecode.ILOAD, 0, 1);
+			code.constant(depth + 1);
+			code.op(Bytecode.ISUB, -1);
+			code.op(Bytecode.ALOAD, 1, 1);
+			z++;
+			for(int x = 0; x < arity; x++) { z = expression(body, z, depth); }
+			code.invoke(Bytecode.INVOKESTATIC, file.method(null, "p" + callee, ClassFile.descriptor(arity)), -arity-1);
+			load();
+			return z;
+		}
+
+		void bail() {
+			code.op2(Bytecode.NEW, file.type("java/lang/RuntimeException"), 1);
+			code.op(Bytecode.DUP, 1);
+			code.invoke(Bytecode.INVOKESPECIAL, file.method("java/lang/RuntimeException", "<init>", "()V"), -1);
+			code.op(Bytecode.ATHROW, -1);
+		}
+
+		// resolve a call, remembering the binding for validation.
+		// anything other than a call resolves to null.
+		LList call(LAtom a) {
+			if (!(a instanceof LWord) || ((LWord)a).type != LWord.Type.Call) { return null; }
+			LWord word = (LWord)a;
+			LList target = env.resolve(word);
+			if (target == null) { throw new Uncompilable(); }
+			if (!words.containsKey(word.value)) {
+				words.put(word.value, word);
+				bound.put(word.value, target);
+			}
+			else if (bound.get(word.value) != target) { throw new Uncompilable(); }
+			return target;
+		}
+	}
+}
+
+// compiled code for a group of procedures, along with the
+// bindings which were in effect when it was compiled. it is kept
+// on the list it was compiled from, which may outlive the environments
+// which ran it, so like a Link the environment is only weakly referenced:
+class Jit extends java.lang.ref.WeakReference<Environment> {
+	static final Jit FAILED = new Jit(null, null, null, 0, null, 0);
+
+	final Compiled code;
+	final LWord[] names;
+	final LList[] targets;
+	final int arity;
+
+	// the version of the Environment this code was last validated against:
+	final int version;
+
+	// the number of calls this code has given up on. Updated
+	// without synchronization, so it is only approximate when
+	// the code is shared by Environments on several threads:
+	int failures = 0;
+
+	Jit(Compiled code, LWord[] names, LList[] targets, int arity, Environment env, int version) {
+		super(env);
+		this.code    = code;
+		this.names   = names;
+		this.targets = targets;
+		this.arity   = arity;
+		this.version = version;
+	}
+
+	Jit(Jit base, Environment env) {
+		this(base.code, base.names, base.targets, base.arity, env, env.version);
+		this.failures = base.failures;
+	}
+
+	boolean valid(Environment e) {
+		for(int z = 0; z < names.length; z++) {
+			if (e.resolve(names[z]) != targets[z]) { return false; }
+		}
+		return true;
+	}
+}
+
+class Loader extends ClassLoader {
+	Loader() {
+		super(Compiled.class.getClassLoader());
+	}
+
+	Class<?> define(String name, byte[] bytes) {
+		return defineClass(name, bytes, 0, bytes.length);
+	}
+}
+
+// a growable array of big-endian bytes.
+class Bytes {
+	byte[] data = new byte[64];
+	int size = 0;
+
+	int size() {
+		return size;
+	}
+
+	void u1(int v) {
+		if (size == data.length) {
+			byte[] d = new byte[size * 2];
+			System.arraycopy(data, 0, d, 0, size);
+			data = d;
+		}
+		data[size++] = (byte)v;
+	}
+
+	void u2(int v) { u1(v >> 8); u1(v); }
+	void u4(int v) { u2(v >> 16); u2(v); }
+
+	void bytes(Bytes b) {
+		for(int z = 0; z < b.size; z++) { u1(b.data[z]); }
+	}
+
+	byte[] toArray() {
+		byte[] ret = new byte[size];
+		System.arraycopy(data, 0, ret, 0, size);
+		return ret;
+	}
+}
+
+class Label {
+	int position = -1;
+
+	// the instructions waiting for this label's position,
+	// as pairs of instruction and offset positions:
+	final List<Integer> fixups = new ArrayList<Integer>();
+}
+
+// the body of a single method.
+class Bytecode extends Bytes {
+	static final int ICONST_0      = 0x03;
+	static final int BIPUSH        = 0x10;
+	static final int SIPUSH        = 0x11;
+	static final int LDC_W         = 0x13;
+	static final int ILOAD         = 0x15;
+	static final int ALOAD         = 0x19;
+	static final int IALOAD        = 0x2e;
+	static final int AALOAD        = 0x32;
+	static final int ISTORE        = 0x36;
+	static final int IASTORE       = 0x4f;
+	static final int DUP           = 0x59;
+	static final int IADD          = 0x60;
+	static final int ISUB          = 0x64;
+	static final int IMUL          = 0x68;
+	static final int IDIV          = 0x6c;
+	static final int IREM          = 0x70;
+	static final int INEG          = 0x74;
+	static final int IINC          = 0x84;
+	static final int IFEQ          = 0x99;
+	static final int IFNE          = 0x9a;
+	static final int IFLE          = 0x9e;
+	static final int IFGE          = 0x9c;
+	static final int IF_ICMPEQ     = 0x9f;
+	static final int IF_ICMPNE     = 0xa0;
+	static final int IF_ICMPLT     = 0xa1;
+	static final int IF_ICMPGE     = 0xa2;
+	static final int IF_ICMPGT     = 0xa3;
+	static final int IF_ICMPLE     = 0xa4;
+	static final int GOTO          = 0xa7;
+	static final int IRETURN       = 0xac;
+	static final int RETURN        = 0xb1;
+	static final int GETFIELD      = 0xb4;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC  = 0xb8;
+	static final int NEW           = 0xbb;
+	static final int ATHROW        = 0xbf;
+	static final int CHECKCAST     = 0xc0;
+
+	private final ClassFile file;
+	int stack    = 0;
+	int maxStack = 0;
+
+	Bytecode(ClassFile file) {
+		this.file = file;
+	}
+
+	private void stack(int delta) {
+		stack += delta;
+		maxStack = Math.max(maxStack, stack);
+	}
+
+	void op(int op, int delta) {
+		u1(op);
+		stack(delta);
+	}
+
+	void op(int op, int arg, int delta) {
+		u1(op); u1(arg);
+		stack(delta);
+	}
+
+	void op2(int op, int arg, int delta) {
+		u1(op); u2(arg);
+		stack(delta);
+	}
+
+	void iinc(int local, int v) {
+		u1(IINC); u1(local); u1(v);
+	}
+
+	// invoke a method, given the stack effect of its arguments and result:
+	void invoke(int op, int method, int delta) {
+		op2(op, method, delta);
+	}
+
+	void constant(int v) {
+		if (v >= -1 && v <= 5)                             { op(ICONST_0 + v, 1); }
+		else if (v >= Byte.MIN_VALUE  && v <= Byte.MAX_VALUE)  { op(BIPUSH, v, 1); }
+		else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) { op2(SIPUSH, v, 1); }
+		else                                               { op2(LDC_W, file.integer(v), 1); }
+	}
+
+	void jump(int op, Label label, int delta) {
+		int at = size();
+		u1(op);
+		if (label.position >= 0) { u2(label.position - at); }
+		else {
+			label.fixups.add(at);
+			u2(0);
+		}
+		stack(delta);
+	}
+
+	void mark(Label label) {
+		label.position = size();
+		for(int at : label.fixups) { patch2(at + 1, label.position - at); }
+	}
+
+	void patch2(int at, int v) {
+		data[at]   = (byte)(v >> 8);
+		data[at+1] = (byte)v;
+	}
+}
+
+// a minimal class file writer, producing version 49 (Java 5)
+// classes, which do not require stack map frames.
+class ClassFile {
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL  = 0x0010;
+	static final int ACC_SUPER  = 0x0020;
+
+	private final String name;
+	private final Bytes pool = new Bytes();
+	private final Map<String, Integer> entries = new HashMap<String, Integer>();
+	private int count = 1;
+	private final Bytes methods = new Bytes();
+	private int methodCount = 0;
+
+	ClassFile(String name) {
+		this.name = name;
+	}
+
+	// the descriptor of a static method taking a budget, ticks and some Numbers:
+	static String descriptor(int arity) {
+		StringBuilder ret = new StringBuilder("(I[I");
+		for(int z = 0; z < arity; z++) { ret.append('I'); }
+		return ret.append(")I").toString();
+	}
+
+	private int entry(String key, int tag, int a, int b, boolean wide) {
+		Integer i = entries.get(key);
+		if (i != null) { return i; }
+		pool.u1(tag);
+		if (wide) { pool.u4(a); }
+		else      { pool.u2(a); if (b >= 0) { pool.u2(b); } }
+		entries.put(key, count);
+		return count++;
+	}
+
+	int utf8(String s) {
+		Integer i = entries.get("U" + s);
+		if (i != null) { return i; }
+		pool.u1(1);
+		pool.u2(s.length());
+		for(int z = 0; z < s.length(); z++) { pool.u1(s.charAt(z)); }
+		entries.put("U" + s, count);
+		return count++;
+	}
+
+	int integer(int v) {
+		return entry("I" + v, 3, v, -1, true);
+	}
+
+	int type(String name) {
+		int n = utf8(name);
+		return entry("C" + name, 7, n, -1, false);
+	}
+
+	int method(String owner, String name, String descriptor) {
+		int c  = type(owner == null ? this.name : owner);
+		int n  = utf8(name);
+		int d  = utf8(descriptor);
+		int nt = entry("N" + name + " " + descriptor, 12, n, d, false);
+		return entry("M" + c + " " + name + " " + descriptor, 10, c, nt, false);
+	}
+
+	int field(String owner, String name, String descriptor) {
+		int c  = type(owner);
+		int n  = utf8(name);
+		int d  = utf8(descriptor);
+		int nt = entry("N" + name + " " + descriptor, 12, n, d, false);
+		return entry("F" + c + " " + name + " " + descriptor, 9, c, nt, false);
+	}
+
+	void method(int access, String name, String descriptor, Bytecode code, int locals) {
+		methods.u2(access);
+		methods.u2(utf8(name));
+		methods.u2(utf8(descriptor));
+		methods.u2(1);
+		methods.u2(utf8("Code"));
+		methods.u4(12 + code.size());
+		methods.u2(code.maxStack);
+		methods.u2(locals);
+		methods.u4(code.size());
+		methods.bytes(code);
+		methods.u2(0);
+		methods.u2(0);
+		methodCount++;
+	}
+
+	// complete the class with a constructor and an invoke() method which
+	// unpacks its arguments and calls one of the static methods:
+	byte[] toBytes(String parent, String entry, int arity) {
+		Bytecode init = new Bytecode(this);
+		init.op(Bytecode.ALOAD, 0, 1);
+		init.invoke(Bytecode.INVOKESPECIAL, method(parent, "<init>", "()V"), -1);
+		init.op(Bytecode.RETURN, 0);
+		method(ACC_PUBLIC, "<init>", "()V", init, 1);
+
+		String descriptor = descriptor(arity);
+		Bytecode invoke = new Bytecode(this);
+		invoke.op(Bytecode.ILOAD, 1, 1);
+		invoke.op(Bytecode.ALOAD, 2, 1);
+		for(int z = 0; z < arity; z++) {
+			invoke.op(Bytecode.ALOAD, 3, 1);
+			invoke.constant(z);
+			invoke.op(Bytecode.AALOAD, -1);
+			invoke.op2(Bytecode.CHECKCAST, type("com/bme/logo/LNumber"), 0);
+			invoke.op2(Bytecode.GETFIELD, field("com/bme/logo/LNumber", "value", "I"), 0);
+		}
+		invoke.invoke(Bytecode.INVOKESTATIC, method(null, entry, descriptor), -arity-1);
+		invoke.op(Bytecode.IRETURN, -1);
+		method(ACC_PUBLIC, "invoke", "(I[I[Lcom/bme/logo/LAtom;)I", invoke, 4);
+
+		int self  = type(name);
+		int super_ = type(parent);
+
+		Bytes ret = new Bytes();
+		ret.u4(0xCAFEBABE);
+		ret.u2(0);
+		ret.u2(49);
+		ret.u2(count);
+		ret.bytes(pool);
+		ret.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		ret.u2(self);
+		ret.u2(super_);
+		ret.u2(0);
+		ret.u2(0);
+		ret.u2(methodCount);
+		ret.bytes(methods);
+		ret.u2(0);
+		return ret.toArray();
+	}
+}
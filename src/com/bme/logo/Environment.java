@@ -13,9 +13,69 @@ import java.util.*;
 public class Environment {
 
 	Set<Tracer> tracers = new HashSet<Tracer>();
-	boolean paused = false;
-	Stack<Scope> scopes = new Stack<Scope>();
-	{ scopes.push(new Scope(null, false)); }
+	private TraceBuffer[] buffers = new TraceBuffer[0];
+
+	// consumers are fed each event as it happens,
+	// including an adapter for any tracers:
+	private TraceBuffer.Consumer[] consumers = new TraceBuffer.Consumer[0];
+	private final TraceBuffer.Event event = new TraceBuffer.Event();
+
+	// true if any tracers, trace buffers or consumers are attached:
+	boolean tracing = false;
+
+	// may be cleared by another thread to resume a scheduled environment:
+	volatile boolean paused = false;
+
+	// the Scheduler running this environment, if any:
+	volatile Scheduler scheduler = null;
+
+	// the resources this environment may consume, and the
+	// number of ticks and atoms it has consumed so far:
+	Limits limits = new Limits();
+	long ticks = 0;
+	long atoms = 0;
+
+	// the ticks as of the last time the Interpreter returned,
+	// which any thread may read while another runs this one:
+	volatile long publishedTicks = 0;
+	final Frames scopes = new Frames();
+
+	// the greatest number of scopes ever on the stack:
+	int peak = 1;
+
+	// counters which are only kept once someone asks for them.
+	// volatile, since they may be requested from another thread
+	// while the environment is running:
+	volatile Metrics metrics = null;
+	{ scopes.push(null, false); }
+
+	// activation records which are no longer in use:
+	private Func free = null;
+
+	// dynamic scope is implemented with shallow binding:
+	// every name has a single cell holding its innermost value,
+	// and scopes remember the bindings they shadow.
+	final Map<LWord, Cell> cells = new HashMap<LWord, Cell>();
+
+	// incremented whenever a name which has been called as
+	// a procedure is rebound, invalidating call site caches:
+	int version = 0;
+	long hits   = 0;
+	long misses = 0;
+
+	// running total of the load of every live binding,
+	// kept up to date as bindings are created and destroyed:
+	int load = 0;
+
+	// frozen global bindings shared with other environments.
+	// a name found here is copied into the global scope on first use:
+	private final Layer layer;
+
+	// incremented whenever a global binding changes, so that
+	// a snapshot of the globals can be reused until then:
+	private int globals = 0;
+	private Layer snapshot = null;
+	private int snapshotGlobals = 0;
 
 	/**
 	* Construct a new, empty Environment structure
@@ -24,7 +84,24 @@ public class Environment {
 	* an environment with primitives loaded, and is generally
 	* how user code should obtain one.
 	**/
-	public Environment() {}
+	public Environment() {
+		this(null);
+	}
+
+	/**
+	* Construct a new Environment whose global bindings
+	* begin as those of a frozen {@link com.bme.logo.Layer}.
+	*
+	* @param layer the Layer to read through, or null.
+	**/
+	public Environment(Layer layer) {
+		this.layer = layer;
+		if (layer != null) {
+			// the layer's bindings are live from the start:
+			load = layer.load;
+			scopes.get(0).load = layer.load;
+		}
+	}
 
 	/**
 	* Schedule a chunk of code to be executed.
@@ -45,32 +122,73 @@ public class Environment {
 	}
 
 	void push(LList code, boolean procedure) {
-		if (scopes.size() > Interpreter.RECURSION_LIMIT && Interpreter.RECURSION_LIMIT != 0) {
+		if (scopes.size() > limits.frames && limits.frames != 0) {
 			throw new RuntimeError(this, RuntimeError.Type.StackOverflow);
 		}
-		scopes.push(new Scope(code, procedure));
+		scopes.push(code, procedure);
+		if (scopes.size() > peak) { peak = scopes.size(); }
+		// procedure calls are counted as their arguments are collected:
+		if (!procedure) { code.invoked(); }
+	}
+
+	// schedule a chunk of code to be executed several times in a row.
+	// the Interpreter rewinds the same scope for every iteration.
+	void repeat(LList code, int times) {
+		push(code, false);
+		scopes.peek().repeat = times - 1;
+	}
+
+	Scope pop() {
+		Scope s = scopes.pop();
+		clear(s);
+		clearCalls(s);
+		return s;
+	}
+
+	private Func func(LList code) {
+		Func f = free;
+		if (f == null) { f = new Func(); }
+		else           { free = f.next; }
+		f.init(code);
+		return f;
+	}
+
+	void release(Func f) {
+		for(int z = 0; z < f.count; z++) { f.vals[z] = null; }
+		f.count = 0;
+		f.code  = null;
+		f.args  = null;
+		f.next  = free;
+		free    = f;
+	}
+
+	// discard every procedure invocation pending within a scope.
+	void clearCalls(Scope s) {
+		while(s.calls > 0) { release(s.pop()); }
 	}
 
 	private boolean implicitOutput(LAtom a) {
+		// only procedures produce results, not the blocks they run:
+		if (!scopes.peek().procedure) { return false; }
 		// we must be at the end of the current code list:
 		if (scopes.peek().index < scopes.peek().code.size()-1) { return false; }
 		// there must be some expression in a lower scope which wants a result:
 		if (scopes.size() < 2) { return false; }
-		if (scopes.get(scopes.size()-2).trace.size() < 1) { return false; }
+		if (scopes.get(scopes.size()-2).calls < 1) { return false; }
 		return true;
 	}
 
 	void value(LAtom a) {
-		if (scopes.peek().trace.size() < 1) {
+		if (scopes.peek().calls < 1) {
 			if (!implicitOutput(a)) {
 				throw new RuntimeError(this, RuntimeError.Type.UnusedValue, a);
 			}
 			else {
-				scopes.get(scopes.size() - 2).trace.peek().vals.add(a);
+				scopes.get(scopes.size() - 2).peek().add(a);
 				return;
 			}
 		}
-		scopes.peek().trace.peek().vals.add(a);
+		scopes.peek().peek().add(a);
 	}
 
 	/**
@@ -81,21 +199,125 @@ public class Environment {
 	* @param a an LAtom to return.
 	**/
 	public void output(LAtom a) {
-		scopes.pop();
+		allocate(a);
+		pop();
 		value(a);
 	}
 
-	private void set(Map<LWord, LAtom> bindings, LWord name, LAtom value) {
-		if (bindings.containsKey(name) && bindings.get(name) instanceof LList) {
-			if (Primitives.prim((LList)bindings.get(name))) {
+	// account for an atom produced by a primitive:
+	void allocate(LAtom a) {
+		atoms += a.load();
+	}
+
+	// find the cell for a name, copying its binding
+	// from the layer into the global scope if needed.
+	private Cell cell(LWord name) {
+		Cell c = cells.get(name);
+		if (c != null || layer == null) { return c; }
+		LAtom value = layer.get(name);
+		if (value == null) { return null; }
+		c = new Cell();
+		cells.put(name, c);
+		// the load of this binding was counted with the layer:
+		c.owner = 0;
+		c.slot  = scopes.get(0).add(name, c, value, -1, -1);
+		c.value = value;
+		return c;
+	}
+
+	private void set(Scope s, LWord name, LAtom value) {
+		int slot = slot(s, cell(name));
+		if (slot >= 0 && s.values[slot] instanceof LList) {
+			if (Primitives.prim((LList)s.values[slot])) {
 				throw new RuntimeError(this, RuntimeError.Type.MutatePrimitive, name.value);
 			}
 		}
-		bindings.put(name, value);
+		bind(s, name, value);
+	}
+
+	// find the slot in which a scope binds a cell, or -1 if it does not.
+	private int slot(Scope s, Cell c) {
+		if (c == null) { return -1; }
+		int owner = c.owner;
+		int slot  = c.slot;
+		while(owner > s.depth) {
+			Scope above = scopes.get(owner);
+			owner = above.prevOwner[slot];
+			slot  = above.prevSlot[slot];
+		}
+		return owner == s.depth ? slot : -1;
+	}
+
+	void bind(Scope s, LWord name, LAtom value) {
+		Cell c = cell(name);
+		if (c == null) {
+			c = new Cell();
+			cells.put(name, c);
+		}
+
+		// walk down the chain of bindings for this name
+		// until we reach the scope we're binding within:
+		Scope above = null;
+		int aboveSlot = -1;
+		int owner = c.owner;
+		int slot  = c.slot;
+		while(owner > s.depth) {
+			above     = scopes.get(owner);
+			aboveSlot = slot;
+			owner     = above.prevOwner[slot];
+			slot      = above.prevSlot[slot];
+		}
+
+		int delta = value.load();
+		if (owner == s.depth) {
+			// replace an existing binding:
+			delta -= s.values[slot].load();
+			s.values[slot] = value;
+		}
+		else {
+			// shadow whatever binding was visible from this scope:
+			slot = s.add(name, c, value, owner, slot);
+			if (above != null) {
+				above.prevOwner[aboveSlot] = s.depth;
+				above.prevSlot[aboveSlot]  = slot;
+			}
+			else {
+				c.owner = s.depth;
+				c.slot  = slot;
+			}
+		}
+		if (above == null) { c.value = value; }
+		if (c.called) { version++; }
+		if (s.depth == 0) { globals++; }
+		if (value instanceof LList && ((LList)value).name == null) {
+			((LList)value).name = s.names[slot];
+		}
+		s.load += delta;
+		load   += delta;
+	}
+
+	// discard every binding made within a scope.
+	// the scope must be the innermost scope.
+	void clear(Scope s) {
+		for(int z = s.bound-1; z >= 0; z--) {
+			Cell c = s.cells[z];
+			if (c != null) {
+				c.owner = s.prevOwner[z];
+				c.slot  = s.prevSlot[z];
+				c.value = c.owner < 0 ? null : scopes.get(c.owner).values[c.slot];
+				if (c.called) { version++; }
+			}
+			s.names [z] = null;
+			s.cells [z] = null;
+			s.values[z] = null;
+		}
+		s.bound = 0;
+		load -= s.load;
+		s.load = 0;
 	}
 
 	void local(LWord name, LAtom value) {
-		set(scopes.get(scopes.size()-2).bindings, name, value);
+		set(scopes.get(scopes.size()-2), name, value);
 	}
 
 	/**
@@ -105,13 +327,22 @@ public class Environment {
 	* @param value the value of the new binding.
 	**/
 	public void make(LWord name, LAtom value) {
-		for(int z = scopes.size()-2; z >= 1; z--) {
-			if (scopes.get(z).bindings.containsKey(name)) {
-				set(scopes.get(z).bindings, name, value);
+		Cell c = cell(name);
+		if (c != null) {
+			// find the innermost binding beneath the caller's scope:
+			int owner = c.owner;
+			int slot  = c.slot;
+			while(owner > scopes.size()-2) {
+				Scope above = scopes.get(owner);
+				owner = above.prevOwner[slot];
+				slot  = above.prevSlot[slot];
+			}
+			if (owner >= 1) {
+				set(scopes.get(owner), name, value);
 				return;
 			}
 		}
-		set(scopes.get(0).bindings, name, value);
+		set(scopes.get(0), name, value);
 	}
 
 	/**
@@ -121,34 +352,92 @@ public class Environment {
 	* @param name an LWord representing the name of an object to look up.
 	**/
 	public LAtom thing(LWord name) {
-		for(int z = scopes.size()-1; z >= 0; z--) {
-			if (scopes.get(z).bindings.containsKey(name)) {
-				return scopes.get(z).bindings.get(name);
-			}
-		}
+		Cell c = cell(name);
+		if (c != null && c.value != null) { return c.value; }
 		throw new RuntimeError(this, RuntimeError.Type.UndefinedName, name.value);
 	}
 
 	LAtom getName(LAtom value) {
+		// a list remembers the name it was first bound to, which
+		// is usually the answer if that binding is still visible:
+		LList list = value instanceof LList ? (LList)value : null;
+		if (list != null && list.name != null && visible(list.name) == value) { return list.name; }
+
+		// otherwise search every binding, first by identity:
+		LWord ret = search(value, true);
+		if (ret == null) { ret = search(value, false); }
+		if (ret == null) { return value; }
+		if (list != null) { list.name = ret; }
+		return ret;
+	}
+
+	// the innermost value bound to a name, without copying it from the layer:
+	private LAtom visible(LWord name) {
+		Cell c = cells.get(name);
+		if (c != null) { return c.value; }
+		return layer == null ? null : layer.peek(name);
+	}
+
+	private LWord search(LAtom value, boolean identity) {
 		for(int z = scopes.size()-1; z >= 0; z--) {
-			for(Map.Entry<LWord, LAtom> e : scopes.get(z).bindings.entrySet()) {
-				if (e.getValue().equals(value)) { return e.getKey(); }
+			Scope s = scopes.get(z);
+			for(int i = 0; i < s.bound; i++) {
+				if (s.cells[i] == null) { continue; }
+				if (identity ? s.values[i] == value : s.values[i].equals(value)) { return s.names[i]; }
+			}
+		}
+		if (layer != null) {
+			// values which have never been decoded from an image can't be in use:
+			for(LWord name : layer.words()) {
+				if (cells.containsKey(name)) { continue; }
+				LAtom v = layer.peek(name);
+				if (v == null) { continue; }
+				if (identity ? v == value : v.equals(value)) { return name; }
 			}
 		}
-		return value;
+		return null;
+	}
+
+	// find the procedure a call site refers to, or null if
+	// the name is not bound to a list.
+	LList resolve(LWord name) {
+		Link link = name.link;
+		if (link != null && link.get() == this && link.version == version) {
+			hits++;
+			return link.target;
+		}
+		misses++;
+		Cell c = cell(name);
+		if (c == null || !(c.value instanceof LList)) { return null; }
+		c.called = true;
+		name.link = new Link(this, version, (LList)c.value);
+		return (LList)c.value;
 	}
 
 	void call(LWord name) {
-		for(int z = scopes.size()-1; z >= 0; z--) {
-			if (scopes.get(z).bindings.containsKey(name)) {
-				LList code = Primitives.list(this, scopes.get(z).bindings.get(name));
-				scopes.peek().trace.push(new Func(this, code));
-				return;
+		LList code = resolve(name);
+		if (code == null) {
+			Cell c = cell(name);
+			if (c == null || c.value == null) {
+				throw new RuntimeError(this, RuntimeError.Type.UndefinedProcedure, name.value);
 			}
+			code = Primitives.list(this, c.value);
 		}
-		throw new RuntimeError(this, RuntimeError.Type.UndefinedProcedure, name.value);
+		scopes.peek().push(func(code));
 	}
 
+	/**
+	* Return the number of procedure calls which were resolved
+	* using a call site cache since this Environment was created.
+	**/
+	public long cacheHits() { return hits; }
+
+	/**
+	* Return the number of procedure calls which had to look up
+	* their procedure by name since this Environment was created.
+	**/
+	public long cacheMisses() { return misses; }
+
 	/**
 	* Install a new primitive procedure with a specified
 	* argument list. The primitive's value will be used
@@ -169,9 +458,21 @@ public class Environment {
 	* @param name the name of the word to erase.
 	**/
 	public void erase(LWord name) {
-		for(Scope s : scopes) {
-			s.bindings.remove(name);
+		Cell c = cell(name);
+		if (c == null) { return; }
+		while(c.owner >= 0) {
+			Scope s = scopes.get(c.owner);
+			int slot = c.slot;
+			c.owner = s.prevOwner[slot];
+			c.slot  = s.prevSlot[slot];
+			s.load -= s.values[slot].load();
+			load   -= s.values[slot].load();
+			s.cells [slot] = null;
+			s.values[slot] = null;
 		}
+		c.value = null;
+		if (c.called) { version++; }
+		globals++;
 	}
 
 	/**
@@ -180,28 +481,98 @@ public class Environment {
 	**/
 	public Set<LWord> words() {
 		Set<LWord> ret = new HashSet<LWord>();
-		for(Scope s : scopes) {
-			ret.addAll(s.bindings.keySet());
+		for(int i = 0; i < scopes.size(); i++) {
+			Scope s = scopes.get(i);
+			for(int z = 0; z < s.bound; z++) {
+				if (s.cells[z] != null) { ret.add(s.names[z]); }
+			}
+		}
+		if (layer != null) {
+			for(LWord name : layer.words()) {
+				if (!cells.containsKey(name)) { ret.add(name); }
+			}
 		}
 		return ret;
 	}
 
-	int load() {
-		int ret = 0;
-		for(Scope s : scopes) {
-			ret += s.load();
+	/**
+	* Capture the global bindings of this Environment in a frozen
+	* {@link com.bme.logo.Layer}, which new Environments may then share.
+	* Later changes to this Environment do not affect the Layer.
+	**/
+	public Layer freeze() {
+		Map<LWord, LAtom> ret = new HashMap<LWord, LAtom>();
+		Set<LWord> hidden = new HashSet<LWord>();
+		ImageFile image = null;
+		if (layer != null) {
+			for(Map.Entry<LWord, LAtom> b : layer.values().entrySet()) {
+				if (!cells.containsKey(b.getKey())) { ret.put(b.getKey(), b.getValue()); }
+			}
+			// image bindings stay encoded until they are used.
+			// any which this environment has touched are either
+			// rebound below or have been erased:
+			image = layer.image();
+			if (image != null) {
+				hidden.addAll(layer.hidden());
+				for(LWord name : cells.keySet()) {
+					if (image.contains(name)) { hidden.add(name); }
+				}
+			}
+		}
+		Scope g = scopes.get(0);
+		for(int z = 0; z < g.bound; z++) {
+			if (g.cells[z] != null) { ret.put(g.names[z], g.values[z]); }
 		}
+		return new Layer(ret, image, hidden);
+	}
+
+	/**
+	* Create a child Environment which begins with the same global
+	* bindings as this one, such as a library of procedures loaded in
+	* advance. The child shares those bindings with this Environment
+	* and copies each one only when it is used, so nothing the child does
+	* can change this Environment. A copy of this Environment's Limits
+	* is enforced on the child; Tracers are not inherited.
+	*
+	* Forking is cheap: the globals are captured in a frozen
+	* {@link com.bme.logo.Layer} the first time, and the same Layer is
+	* reused by later forks until a global binding of this Environment changes.
+	**/
+	public Environment fork() {
+		if (snapshot == null || snapshotGlobals != globals) {
+			snapshot = freeze();
+			snapshotGlobals = globals;
+		}
+		Environment ret = new Environment(snapshot);
+		ret.limits = limits.copy();
 		return ret;
 	}
 
+	int load() {
+		return load;
+	}
+
 	/**
 	* Collect a callstack trace.
 	**/
 	public List<LAtom> trace() {
 		List<LAtom> ret = new ArrayList<LAtom>();
-		for(int z = scopes.size()-1; z >= 0; z--) {
+		for(LList code : frames(-1)) { ret.add(getName(code)); }
+		return ret;
+	}
+
+	// collect the procedures on the callstack, innermost first,
+	// up to a given number of them or all of them if it is -1:
+	LList[] frames(int limit) {
+		int count = 0;
+		for(int z = scopes.size()-1; z >= 0 && count != limit; z--) {
+			if (scopes.get(z).procedure && !Primitives.prim(scopes.get(z).code)) { count++; }
+		}
+		LList[] ret = new LList[count];
+		int i = 0;
+		for(int z = scopes.size()-1; z >= 0 && i < count; z--) {
 			if (scopes.get(z).procedure && !Primitives.prim(scopes.get(z).code)) {
-				ret.add(getName(scopes.get(z).code));
+				ret[i++] = scopes.get(z).code;
 			}
 		}
 		return ret;
@@ -214,8 +585,8 @@ public class Environment {
 	* a RuntimeError.
 	**/
 	public void reset() {
-		while(scopes.size() > 1) { scopes.pop(); }
-		scopes.peek().trace.clear();
+		while(scopes.size() > 1) { pop(); }
+		clearCalls(scopes.peek());
 		scopes.peek().code = null;
 		scopes.peek().index = 0;
 		resume();
@@ -229,53 +600,323 @@ public class Environment {
 	/**
 	* Pause execution of this program.
 	**/
-	public void pause() { paused = true; }
+	public void pause() {
+		Metrics m = metrics;
+		if (!paused && m != null) { m.pauses.incrementAndGet(); }
+		paused = true;
+	}
 
 	/**
 	* Resume execution of this program.
+	* If this environment belongs to a {@link com.bme.logo.Scheduler},
+	* it will be scheduled to run again.
+	**/
+	public void resume() {
+		Metrics m = metrics;
+		if (paused && m != null) { m.resumes.incrementAndGet(); }
+		paused = false;
+		Scheduler s = scheduler;
+		if (s != null) { s.resumed(this); }
+	}
+
+	/**
+	* Return the total number of ticks this environment had executed
+	* when the Interpreter last returned from running it. This may be
+	* called from any thread. While a program is running on another
+	* thread, the count may lag behind by as much as one quantum.
 	**/
-	public void resume() { paused = false; }
+	public long ticks() { return publishedTicks; }
+
+	/**
+	* Return the Metrics of this environment, which begin
+	* to be collected the first time this method is called.
+	* See {@link com.bme.logo.Metrics}.
+	**/
+	public synchronized Metrics metrics() {
+		if (metrics == null) { metrics = new Metrics(this); }
+		return metrics;
+	}
+
+	/**
+	* Return the total load of the atoms primitives
+	* have produced while running in this environment.
+	**/
+	public long atoms() { return atoms; }
+
+	/**
+	* Return the Limits enforced on this environment.
+	**/
+	public Limits limits() { return limits; }
+
+	/**
+	* Replace the Limits enforced on this environment.
+	*
+	* @param limits the new Limits.
+	**/
+	public void setLimits(Limits limits) {
+		if (limits == null) { throw new NullPointerException(); }
+		this.limits = limits;
+	}
 
 	/**
 	* Attach a Tracer which will be fed events as this Environment is executed.
 	*
 	* @param t the new tracer.
 	**/
-	public void addTracer(Tracer t) { this.tracers.add(t); }
+	public void addTracer(Tracer t) {
+		if (tracers.size() == 0) { addTraceConsumer(new TracerAdapter(tracers)); }
+		this.tracers.add(t);
+	}
+
+	/**
+	* Attach a TraceBuffer.Consumer which will be fed events as this
+	* Environment is executed. Unlike a {@link com.bme.logo.TraceBuffer},
+	* the consumer is called immediately, on the thread running the program.
+	*
+	* @param c the new consumer.
+	**/
+	public void addTraceConsumer(TraceBuffer.Consumer c) {
+		TraceBuffer.Consumer[] n = new TraceBuffer.Consumer[consumers.length + 1];
+		System.arraycopy(consumers, 0, n, 0, consumers.length);
+		n[consumers.length] = c;
+		consumers = n;
+		tracing = true;
+	}
+
+	/**
+	* Attach a TraceBuffer which will record events as this Environment is executed.
+	*
+	* @param b the new trace buffer.
+	**/
+	public void addTraceBuffer(TraceBuffer b) {
+		TraceBuffer[] n = new TraceBuffer[buffers.length + 1];
+		System.arraycopy(buffers, 0, n, 0, buffers.length);
+		n[buffers.length] = b;
+		buffers = n;
+		tracing = true;
+	}
+
+	// record a trace event involving a procedure and
+	// the arguments it was called with or the value it returned.
+	void trace(TraceBuffer.Kind kind, LList code, boolean implicit, LAtom value, LList names, LAtom[] vals, int count) {
+		TraceName t = traceName(code);
+		emit(kind, t.id, t.name, implicit, value, names, vals, count);
+	}
+
+	// record a trace event which involves no procedure, such
+	// as the beginning of a program, with an optional name:
+	void trace(TraceBuffer.Kind kind, String name) {
+		emit(kind, 0, name, false, null, null, null, 0);
+	}
+
+	private void emit(TraceBuffer.Kind kind, int id, String name, boolean implicit, LAtom value, LList names, LAtom[] vals, int count) {
+		int depth = scopes.size();
+		for(TraceBuffer b : buffers) {
+			b.record(kind, ticks, depth, id, name, implicit, value, names, vals, count);
+		}
+		if (consumers.length > 0) {
+			event.set(kind, ticks, depth, id, name, implicit, value);
+			event.arguments(names, vals, 0, count, -1);
+			for(TraceBuffer.Consumer c : consumers) { c.event(event); }
+		}
+	}
+
+	// names are looked up once per procedure, and again
+	// only if a procedure name has been rebound since:
+	private TraceName traceName(LList code) {
+		TraceName t = code.traceName;
+		if (t != null && t.get() == this && t.version == version) { return t; }
+		String name = getName(code).toString();
+		if (name.startsWith("'")) { name = name.substring(1); }
+		t = new TraceName(t == null ? TraceBuffer.id() : t.id, this, version, name);
+		code.traceName = t;
+		return t;
+	}
 }
 
 class Scope {
-	// dynamic value bindings
-	final Map<LWord, LAtom> bindings = new HashMap<LWord, LAtom>();	
+	// shallow bindings made in this scope. each binding
+	// shadows the binding at (prevOwner, prevSlot), if any,
+	// which will become visible again when this scope is popped.
+	LWord[] names     = new LWord[4];
+	Cell [] cells     = new Cell [4];
+	LAtom[] values    = new LAtom[4];
+	int  [] prevOwner = new int  [4];
+	int  [] prevSlot  = new int  [4];
+	int bound = 0;
+
+	// the sum of the loads of every value bound in this scope
+	int load = 0;
 
 	// execution context
-	final Stack<Func> trace = new Stack<Func>();
-	final boolean procedure;
+	Func[] trace = new Func[4];
+	int calls = 0;
+	boolean procedure;
+	final int depth;
 	LList code;
 	int index = 0;
 
-	// note: code will be null in the global environment scope.
-	Scope(LList code, boolean procedure) {
-		this.code      = code;
-		this.procedure = procedure;
+	// the number of times this code will be run again
+	// after this iteration, as with 'repeat':
+	int repeat = 0;
+
+	// incremented every time this scope is reused for a new frame:
+	int serial = 0;
+
+	Scope(int depth) {
+		this.depth = depth;
 	}
 
-	int load() {
-		int ret = 0;
-		for(LAtom a : bindings.values()) {
-			ret += a.load();
+	Func peek() {
+		return trace[calls-1];
+	}
+
+	Func pop() {
+		Func f = trace[--calls];
+		trace[calls] = null;
+		return f;
+	}
+
+	void push(Func f) {
+		if (calls == trace.length) {
+			Func[] t = new Func[calls * 2];
+			System.arraycopy(trace, 0, t, 0, calls);
+			trace = t;
 		}
-		return ret;
+		trace[calls++] = f;
+	}
+
+	int add(LWord name, Cell cell, LAtom value, int owner, int slot) {
+		if (bound == names.length) {
+			LWord[] n = new LWord[bound * 2];
+			Cell [] c = new Cell [bound * 2];
+			LAtom[] v = new LAtom[bound * 2];
+			int  [] o = new int  [bound * 2];
+			int  [] s = new int  [bound * 2];
+			System.arraycopy(names,     0, n, 0, bound);
+			System.arraycopy(cells,     0, c, 0, bound);
+			System.arraycopy(values,    0, v, 0, bound);
+			System.arraycopy(prevOwner, 0, o, 0, bound);
+			System.arraycopy(prevSlot,  0, s, 0, bound);
+			names = n; cells = c; values = v; prevOwner = o; prevSlot = s;
+		}
+		names    [bound] = name;
+		cells    [bound] = cell;
+		values   [bound] = value;
+		prevOwner[bound] = owner;
+		prevSlot [bound] = slot;
+		return bound++;
+	}
+}
+
+class Cell {
+	// the innermost binding of a name, or null if it is unbound:
+	LAtom value = null;
+
+	// the depth of the scope which made that binding
+	// and its position within that scope:
+	int owner = -1;
+	int slot  = -1;
+
+	// true once this name has been resolved as a procedure:
+	boolean called = false;
+}
+
+// a call site cache entry, valid as long as the
+// version of its Environment has not changed.
+// code may outlive the environments which ran it,
+// so the environment is only weakly referenced:
+class Link extends java.lang.ref.WeakReference<Environment> {
+	final int version;
+	final LList target;
+
+	Link(Environment env, int version, LList target) {
+		super(env);
+		this.version = version;
+		this.target  = target;
+	}
+}
+
+// the name under which a procedure is traced, valid as long
+// as the version of its Environment has not changed. like a
+// Link, it is kept on the code, so the environment is only weakly referenced:
+class TraceName extends java.lang.ref.WeakReference<Environment> {
+	final int id;
+	final int version;
+	final String name;
+
+	TraceName(int id, Environment env, int version, String name) {
+		super(env);
+		this.id      = id;
+		this.version = version;
+		this.name    = name;
+	}
+}
+
+// Frames is an array-backed stack of Scopes.
+// Scopes are never discarded once allocated; when a frame is
+// popped its Scope is left in place to be reused by the next push.
+class Frames {
+	private Scope[] frames = new Scope[16];
+	private int size = 0;
+
+	int size() {
+		return size;
+	}
+
+	Scope peek() {
+		return frames[size-1];
+	}
+
+	Scope get(int index) {
+		return frames[index];
+	}
+
+	// note: code will be null in the global environment scope.
+	Scope push(LList code, boolean procedure) {
+		if (size == frames.length) {
+			Scope[] f = new Scope[size * 2];
+			System.arraycopy(frames, 0, f, 0, size);
+			frames = f;
+		}
+		Scope s = frames[size];
+		if (s == null) { s = frames[size] = new Scope(size); }
+		s.code      = code;
+		s.procedure = procedure;
+		s.index     = 0;
+		s.repeat    = 0;
+		s.serial++;
+		size++;
+		return s;
+	}
+
+	Scope pop() {
+		return frames[--size];
 	}
 }
 
 class Func {
+	private static final LList NONE = new LList();
+
 	LList code;
 	LList args;
-	List<LAtom> vals = new ArrayList<LAtom>();
+	LAtom[] vals = new LAtom[4];
+	int count = 0;
 
-	Func(Environment e, LList code) {
+	// the next free Func, while this one is unused
+	Func next;
+
+	void init(LList code) {
 		this.code = code;
-		this.args = code.arguments == null ? new LList() : code.arguments;
+		this.args = code.arguments == null ? NONE : code.arguments;
 	}
-}
\ No newline at end of file
+
+	void add(LAtom a) {
+		if (count == vals.length) {
+			LAtom[] v = new LAtom[count * 2];
+			System.arraycopy(vals, 0, v, 0, count);
+			vals = v;
+		}
+		vals[count++] = a;
+	}
+}
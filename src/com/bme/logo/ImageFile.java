@@ -0,0 +1,406 @@
+package com.bme.logo;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+* <p>An ImageFile is a compact binary image of the global bindings
+* of an Environment, such as a library of procedures, which can be
+* saved to a file and loaded again without parsing or running any code.</p>
+*
+* <p>Loading an image maps the file into memory and reads only its index.
+* Each binding is decoded the first time it is used, so a large library
+* costs little to load. The result is a {@link com.bme.logo.Layer} which
+* any number of Environments may share.</p>
+*
+* <p>Primitives are not saved. A primitive bound under its own name is left
+* out of the image entirely, and any other reference to a primitive is saved by
+* name and resolved against a host Environment when the image is loaded.</p>
+*
+* <p>The bindings are covered by a checksum, which is verified when the image
+* is loaded, so a damaged image is rejected before any of it is used.</p>
+*
+* @author John Earnest
+**/
+
+public final class ImageFile {
+
+	/**
+	* The version of the image format written by this class.
+	* Images with any other version can not be loaded.
+	**/
+	public static final int VERSION = 2;
+
+	private static final int MAGIC = 0x4d4c4749; // 'MLGI'
+
+	private final String source;
+	private final ByteBuffer data;
+	private final Decoder decoder;
+	private final Map<LWord, Entry> index;
+
+	// guarded by this:
+	private final Map<LWord, LAtom> decoded = new HashMap<LWord, LAtom>();
+
+	private ImageFile(String source, ByteBuffer data, LList[] prims, Map<LWord, Entry> index) {
+		this.source  = source;
+		this.data    = data;
+		this.decoder = new Decoder(prims);
+		this.index   = index;
+	}
+
+	/**
+	* Save the global bindings of an Environment to a file.
+	*
+	* @param e the Environment to save.
+	* @param file the file to write.
+	* @throws IOException if the file cannot be written.
+	* @throws IllegalArgumentException if a binding holds a value which cannot be saved.
+	**/
+	public static void save(Environment e, File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			save(e, out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	* Write the global bindings of an Environment to a stream.
+	*
+	* @param e the Environment to save.
+	* @param stream the stream to write. It is not closed.
+	* @throws IOException if the stream cannot be written.
+	* @throws IllegalArgumentException if a binding holds a value which cannot be saved.
+	**/
+	public static void save(Environment e, OutputStream stream) throws IOException {
+		Layer globals = e.freeze();
+		List<LWord> names = new ArrayList<LWord>(globals.words());
+		Collections.sort(names);
+
+		Encoder enc = new Encoder();
+		List<LWord> saved = new ArrayList<LWord>();
+		List<int[]>  spans = new ArrayList<int[]>();
+		for(LWord name : names) {
+			LAtom value = globals.get(name);
+			// the host provides its own primitives:
+			if (value instanceof LList && Primitives.prim((LList)value) &&
+			    ((LWord)((LList)value).first()).value.equals(name.value)) { continue; }
+			int start = enc.size();
+			enc.atom(value);
+			saved.add(name);
+			spans.add(new int[] { start, enc.size() - start, value.load() });
+		}
+
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(enc.prims.size());
+		for(String p : enc.prims) { Encoder.string(out, p); }
+		out.writeInt(saved.size());
+		for(int z = 0; z < saved.size(); z++) {
+			out.writeByte(saved.get(z).type.ordinal());
+			Encoder.string(out, saved.get(z).value);
+			out.writeInt(spans.get(z)[0]);
+			out.writeInt(spans.get(z)[1]);
+			out.writeInt(spans.get(z)[2]);
+		}
+		byte[] payload = enc.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		out.writeInt(payload.length);
+		out.writeInt((int)crc.getValue());
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	* Load an image from a file. The bindings of the host Environment
+	* are included in the resulting Layer, and take precedence over
+	* those of the image. Any primitives the image refers to must be
+	* bound in the host, usually an Environment from
+	* {@link com.bme.logo.Primitives#kernel}.
+	*
+	* @param file the file to read.
+	* @param host an Environment providing primitives.
+	* @return a Layer containing the bindings of the host and the image.
+	* @throws IOException if the file cannot be read or is not a valid image.
+	**/
+	public static Layer load(File file, Environment host) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			buffer = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+		}
+		finally {
+			f.close();
+		}
+
+		Layer base = host.freeze();
+		Map<LWord, LAtom> values = new HashMap<LWord, LAtom>();
+		for(LWord name : base.words()) { values.put(name, base.get(name)); }
+
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(String.format("'%s' is not an image.", file));
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException(String.format("'%s' has unsupported image version %d.", file, version));
+			}
+			// every primitive name takes at least its four byte length:
+			int primCount = buffer.getInt();
+			if (primCount < 0 || primCount > buffer.remaining() / 4) {
+				throw new IOException(String.format("'%s' is corrupt.", file));
+			}
+			LList[] prims = new LList[primCount];
+			for(int z = 0; z < prims.length; z++) {
+				String name = Decoder.string(buffer);
+				LAtom p = values.get(new LWord(LWord.Type.Call, name));
+				if (!(p instanceof LList) || !Primitives.prim((LList)p)) {
+					throw new IOException(String.format("'%s' refers to unknown primitive '%s'.", file, name));
+				}
+				prims[z] = (LList)p;
+			}
+			int count = buffer.getInt();
+			Map<LWord, Entry> index = new HashMap<LWord, Entry>();
+			for(int z = 0; z < count; z++) {
+				int type = buffer.get();
+				if (type < 0 || type >= LWord.Type.values().length) {
+					throw new IOException(String.format("'%s' is corrupt.", file));
+				}
+				LWord name = new LWord(LWord.Type.values()[type], Decoder.string(buffer));
+				index.put(name, new Entry(buffer.getInt(), buffer.getInt(), buffer.getInt()));
+			}
+			int size  = buffer.getInt();
+			int check = buffer.getInt();
+			if (size != buffer.remaining()) {
+				throw new IOException(String.format("'%s' is truncated.", file));
+			}
+			// every binding must lie within the data which follows:
+			for(Entry entry : index.values()) {
+				if (entry.offset < 0 || entry.length < 0 || entry.offset > size - entry.length) {
+					throw new IOException(String.format("'%s' is corrupt.", file));
+				}
+			}
+			CRC32 crc = new CRC32();
+			byte[] chunk = new byte[8192];
+			ByteBuffer data = buffer.duplicate();
+			while(data.hasRemaining()) {
+				int n = Math.min(chunk.length, data.remaining());
+				data.get(chunk, 0, n);
+				crc.update(chunk, 0, n);
+			}
+			if ((int)crc.getValue() != check) {
+				throw new IOException(String.format("'%s' is corrupt.", file));
+			}
+			ImageFile image = new ImageFile(file.toString(), buffer.slice(), prims, index);
+			return new Layer(values, image, Collections.<LWord>emptySet());
+		}
+		catch(BufferUnderflowException e) {
+			throw invalid(String.format("'%s' is truncated.", file), e);
+		}
+		catch(RuntimeException e) {
+			// a bad tag, index or length:
+			throw invalid(String.format("'%s' is corrupt.", file), e);
+		}
+	}
+
+	private static IOException invalid(String message, RuntimeException cause) {
+		IOException ret = new IOException(message);
+		ret.initCause(cause);
+		return ret;
+	}
+
+	Set<LWord> words() {
+		return index.keySet();
+	}
+
+	boolean contains(LWord name) {
+		return index.containsKey(name);
+	}
+
+	int load(LWord name) {
+		return index.get(name).load;
+	}
+
+	// return a binding, decoding it if it has not been used before:
+	synchronized LAtom get(LWord name) {
+		LAtom ret = decoded.get(name);
+		if (ret != null) { return ret; }
+		Entry entry = index.get(name);
+		if (entry == null) { return null; }
+		ByteBuffer b = data.duplicate();
+		b.position(entry.offset);
+		b.limit(entry.offset + entry.length);
+		try {
+			ret = decoder.atom(b);
+		}
+		catch(RuntimeException e) {
+			// the checksum was verified when the image was loaded,
+			// so this is a binding which was written incorrectly:
+			IllegalStateException bad = new IllegalStateException(String.format("'%s' is corrupt.", source));
+			bad.initCause(e);
+			throw bad;
+		}
+		decoded.put(name, ret);
+		return ret;
+	}
+
+	// return a binding only if it has already been decoded:
+	synchronized LAtom peek(LWord name) {
+		return decoded.get(name);
+	}
+
+	private static class Entry {
+		final int offset;
+		final int length;
+		final int load;
+
+		Entry(int offset, int length, int load) {
+			this.offset = offset;
+			this.length = length;
+			this.load   = load;
+		}
+	}
+}
+
+// the encoding of atoms shared by images and the parse cache.
+// lists keep their arguments, source text and to-block tags,
+// while primitives are recorded by name in a table.
+class Encoder {
+	static final byte NUMBER    = 0;
+	static final byte WORD      = 1;
+	static final byte LIST      = 2;
+	static final byte PRIMITIVE = 3;
+	static final byte PRIM_WORD = 4;
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+	final List<String> prims = new ArrayList<String>();
+	private final Map<String, Integer> primIndex = new HashMap<String, Integer>();
+
+	int size() {
+		return out.size();
+	}
+
+	void writeTo(OutputStream stream) throws IOException {
+		out.flush();
+		bytes.writeTo(stream);
+	}
+
+	byte[] toByteArray() throws IOException {
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	void atom(LAtom a) throws IOException {
+		if (a instanceof LNumber) {
+			out.writeByte(NUMBER);
+			out.writeInt(((LNumber)a).value);
+			return;
+		}
+		if (a instanceof LWord && ((LWord)a).type == LWord.Type.Prim) {
+			out.writeByte(PRIM_WORD);
+			out.writeInt(prim(((LWord)a).value));
+			return;
+		}
+		if (a instanceof LWord) {
+			out.writeByte(WORD);
+			out.writeByte(((LWord)a).type.ordinal());
+			string(out, ((LWord)a).value);
+			return;
+		}
+		if (!(a instanceof LList)) {
+			throw new IllegalArgumentException("Unable to save " + a.getClass().getName() + ".");
+		}
+		LList list = (LList)a;
+		if (Primitives.prim(list)) {
+			out.writeByte(PRIMITIVE);
+			out.writeInt(prim(((LWord)list.first()).value));
+			return;
+		}
+		out.writeByte(LIST);
+		out.writeInt(list.size());
+		for(int z = 0; z < list.size(); z++) { atom(list.item(z)); }
+		out.writeByte(list.arguments != null ? 1 : 0);
+		if (list.arguments != null) { atom(list.arguments); }
+		string(out, list.sourceText);
+		out.writeInt(list.toBlocks.size());
+		for(Map.Entry<LWord, String> block : list.toBlocks.entrySet()) {
+			out.writeInt(position(list, block.getKey()));
+			string(out, block.getValue());
+		}
+	}
+
+	private int prim(String name) {
+		Integer ret = primIndex.get(name);
+		if (ret == null) {
+			ret = prims.size();
+			prims.add(name);
+			primIndex.put(name, ret);
+		}
+		return ret;
+	}
+
+	// toBlocks are keyed by the identity of a word in the list:
+	private int position(LList list, LWord word) {
+		for(int z = 0; z < list.size(); z++) {
+			if (list.item(z) == word) { return z; }
+		}
+		throw new IllegalArgumentException("Unable to save a detached procedure definition.");
+	}
+
+	static void string(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
+
+class Decoder {
+	private final LList[] prims;
+
+	Decoder(LList[] prims) {
+		this.prims = prims;
+	}
+
+	LAtom atom(ByteBuffer b) {
+		byte tag = b.get();
+		switch(tag) {
+			case Encoder.NUMBER   : return new LNumber(b.getInt());
+			case Encoder.WORD     : return new LWord(LWord.Type.values()[b.get()], string(b));
+			case Encoder.PRIMITIVE: return prims[b.getInt()];
+			case Encoder.PRIM_WORD: return prims[b.getInt()].first();
+			case Encoder.LIST     : break;
+			default               : throw new IllegalStateException();
+		}
+		List<LAtom> items = new ArrayList<LAtom>();
+		int size = b.getInt();
+		for(int z = 0; z < size; z++) { items.add(atom(b)); }
+		LList ret = new LList(items);
+		if (b.get() != 0) { ret = new LList(ret, (LList)atom(b)); }
+		ret.sourceText = string(b);
+		int blocks = b.getInt();
+		for(int z = 0; z < blocks; z++) {
+			LAtom local = items.get(b.getInt());
+			ret.defineBlock((LWord)local, string(b));
+		}
+		return ret;
+	}
+
+	static String string(ByteBuffer b) {
+		// check the length before trusting it with an allocation:
+		int length = b.getInt();
+		if (length < 0)            { throw new IllegalStateException(); }
+		if (length > b.remaining()) { throw new BufferUnderflowException(); }
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		try { return new String(bytes, "UTF-8"); }
+		catch(UnsupportedEncodingException e) { throw new Error(e); }
+	}
+}
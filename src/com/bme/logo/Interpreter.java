@@ -11,8 +11,10 @@ import java.util.*;
 public class Interpreter {
 
 	/**
-	* The number of activation frames which the interpreter
+	* The default number of activation frames which the interpreter
 	* is allowed to create before signaling a stack overflow.
+	* Each Environment copies this value into its own {@link com.bme.logo.Limits}
+	* when it is created.
 	* Note that the global scope and invocation of primitives
 	* contributes to this count, so it is not strictly
 	* a measurement of how many procedure calls are in flight.
@@ -21,12 +23,40 @@ public class Interpreter {
 	public static int RECURSION_LIMIT = 1000;
 
 	/**
-	* The number of atoms which the interpreter is allowed
+	* The default number of atoms which the interpreter is allowed
 	* to consume before signaling an out of memory error.
+	* Each Environment copies this value into its own {@link com.bme.logo.Limits}
+	* when it is created.
 	* If this is set to -1, no limit will be enforced.
 	**/
 	public static int MEMORY_LIMIT = 1024*16;
 
+	/**
+	* If true, expressions composed entirely of kernel primitives
+	* are linked into expression trees the first time a list of
+	* code is executed and are then evaluated in a single step.
+	* Procedures which are called frequently and work only with Numbers
+	* are also compiled into JVM classes. See {@link com.bme.logo.Compiled}.
+	* Set this to false to use the reference interpreter exclusively.
+	* Neither is used while any Tracer is attached.
+	**/
+	public static boolean COMPILE = true;
+
+	/**
+	* The number of times a list of code must begin executing
+	* before its expressions are linked. Code which runs only once,
+	* such as most top-level programs, is never linked.
+	* See {@link com.bme.logo.LList#invocations}.
+	**/
+	public static int LINK_THRESHOLD = 2;
+
+	/**
+	* The number of times a procedure must be called
+	* before the Interpreter attempts to compile it.
+	* See {@link com.bme.logo.LList#invocations}.
+	**/
+	public static int COMPILE_THRESHOLD = 50;
+
 	private Interpreter() {}
 
 	/**
@@ -40,7 +70,8 @@ public class Interpreter {
 	**/
 	public static void run(LList code, Environment e) {
 		init(code, e);
-		while(tick(e)) {}
+		try { while(tick(e)) {} }
+		finally { e.publishedTicks = e.ticks; }
 	}
 
 	/**
@@ -53,8 +84,9 @@ public class Interpreter {
 	public static void init(LList code, Environment e) {
 		e.scopes.peek().code = code;
 		e.scopes.peek().index = 0;
-		e.scopes.peek().trace.clear();
-		for(Tracer tracer : e.tracers) { tracer.begin(); }
+		e.clearCalls(e.scopes.peek());
+		code.invoked();
+		if (e.tracing) { e.trace(TraceBuffer.Kind.Begin, null); }
 	}
 
 	/**
@@ -66,16 +98,23 @@ public class Interpreter {
 	* @return true if the program has been paused, false if it has completed.
 	**/
 	public static boolean runUntil(Environment e) {
-		while(tick(e)) {
-			if (e.paused) { return true; }
+		try {
+			while(tick(e)) {
+				if (e.paused) { return true; }
+			}
+			return false;
+		}
+		finally {
+			e.publishedTicks = e.ticks;
 		}
-		return false;
 	}
 
 	/**
 	* Execute a running program until it completes,
 	* it is paused by a primitive procedure or
 	* it reaches a specified tick timeout.
+	* Ticks spent in compiled code count towards the timeout,
+	* so it may be overrun by the ticks of a single compiled call.
 	* Used in conjunction with {@link #init}.
 	*
 	* @param e an environment within which to execute the program.
@@ -83,102 +122,173 @@ public class Interpreter {
 	* @return true if the program has been paused or timed out, false if it has completed.
 	**/
 	public static boolean runUntil(Environment e, int maxTicks) {
-		for(int z = 0; z < maxTicks && !e.paused; z++) {
-			if (!tick(e)) { return false; }
+		long end = e.ticks + maxTicks;
+		try {
+			while(e.ticks < end && !e.paused) {
+				if (!tick(e)) { return false; }
+			}
+			return true;
+		}
+		finally {
+			e.publishedTicks = e.ticks;
 		}
-		return true;
 	}
 
 	private static boolean tick(Environment e) {
-		if (MEMORY_LIMIT > -1) {
+		Limits limits = e.limits;
+		if (limits.load > -1) {
 			// protect against runaway memory allocation.
-			// this is somewhat expensive to check every tick,
-			// but catching OutOfMemoryErrors is very flaky
-			// and unreliable.
-			if (e.load() > MEMORY_LIMIT) {
+			// catching OutOfMemoryErrors is very flaky and
+			// unreliable, so the Environment keeps a running
+			// total of the load of its bindings instead.
+			if (e.load() > limits.load) {
 				throw new RuntimeError(e, RuntimeError.Type.OutOfMemory);
 			}
 		}
+		if (limits.ticks > -1 && e.ticks >= limits.ticks) {
+			throw new RuntimeError(e, RuntimeError.Type.OutOfTicks);
+		}
+		if (limits.atoms > -1 && e.atoms > limits.atoms) {
+			throw new RuntimeError(e, RuntimeError.Type.OutOfAtoms);
+		}
+		if (limits.deadline > -1 && (e.ticks & 1023) == 0) {
+			if (System.currentTimeMillis() > limits.deadline) {
+				throw new RuntimeError(e, RuntimeError.Type.OutOfTime);
+			}
+		}
 
-		for(Tracer tracer : e.tracers) { tracer.tick(); }
+		if (e.tracing) {
+			for(Tracer tracer : e.tracers) { tracer.tick(); }
+		}
+		e.ticks++;
 
 		Scope s = e.scopes.peek();
 
 		//System.err.format("index %d code %s%n", s.index, s.code);
 
 		// check for gravid procedure invocations
-		if (s.trace.size() > 0) {
-			Func f = s.trace.peek();
-			if (f.args.size() == f.vals.size()) {
-				s.trace.pop();
+		if (s.calls > 0) {
+			Func f = s.peek();
+			if (f.args.size() == f.count) {
+				s.pop();
+				boolean prim = Primitives.prim(f.code);
+				Metrics m = e.metrics;
+				if (m != null && prim) { m.primitive(f.code); }
+				// primitive bodies are shared by every environment,
+				// and are never linked or compiled, so they are not counted:
+				if (!prim) { f.code.invoked(); }
+				if (prim && f.code.first() instanceof Primitive) {
+					invoke(e, f);
+					e.release(f);
+					return true;
+				}
+				if (COMPILE && !e.tracing && Compiler.call(e, f)) {
+					if (m != null) { m.calls++; }
+					e.release(f);
+					return true;
+				}
 				boolean tailCalled = newScope(e, f.code);
-				for(int z = 0; z < f.args.size(); z++) {
-					e.scopes.peek().bindings.put(Primitives.word(e, f.args.item(z)), f.vals.get(z));
+				if (m != null && !prim) {
+					if (tailCalled) { m.tailCalls++; }
+					else            { m.calls++;     }
+				}
+				for(int z = 0; z < f.count; z++) {
+					e.bind(e.scopes.peek(), Primitives.word(e, f.args.item(z)), f.vals[z]);
 				}
 
-				if (e.tracers.size() > 0) {
-					String name = e.getName(f.code).toString();
-					if (name.startsWith("'")) { name = name.substring(1); }
-					Map<LAtom, LAtom> args = new HashMap<LAtom, LAtom>();
-					for(int z = 0; z < f.args.size(); z++) { args.put(f.args.item(z), f.vals.get(z)); }
-					if (Primitives.prim(f.code)) {
-						for(Tracer tracer : e.tracers) { tracer.callPrimitive(name, args); }
-					}
-					else {
-						for(Tracer tracer : e.tracers) { tracer.call(name, args, tailCalled); }
-					}
+				if (e.tracing) {
+					TraceBuffer.Kind kind =
+						prim                    ? TraceBuffer.Kind.CallPrimitive :
+						tailCalled              ? TraceBuffer.Kind.TailCall      :
+						                          TraceBuffer.Kind.Call;
+					e.trace(kind, f.code, false, null, f.args, f.vals, f.count);
 				}
+				e.release(f);
 				return true;
 			}
 		}
 
 		// check for an environment which has been halted via 'reset()':
 		if (s.code == null) {
-			for(Tracer tracer : e.tracers) { tracer.end(); }
+			if (e.tracing) { e.trace(TraceBuffer.Kind.End, null); }
 			return false;
 		}
 
 		// check for an exhausted list
 		if (s.index >= s.code.size()) {
-			if (s.trace.size() > 0) {
+			if (s.calls > 0) {
 				throw new RuntimeError(e, RuntimeError.Type.NotEnoughArguments,
-					e.getName(s.trace.peek().code)
+					e.getName(s.peek().code)
 				);
 			}
 			if (e.scopes.size() <= 1) {
-				for(Tracer tracer : e.tracers) { tracer.end(); }
+				if (e.tracing) { e.trace(TraceBuffer.Kind.End, null); }
 				return false;
 			}
 
-			if (e.tracers.size() > 0 && !Primitives.prim(e.scopes.peek().code)) {
+			if (e.tracing && s.procedure && !Primitives.prim(s.code)) {
 				// implied 'stop' or 'output':
-				String name = e.getName(e.scopes.peek().code).toString();
-				if (name.startsWith("'")) { name = name.substring(1); }
-				Stack<Func> f = e.scopes.get(e.scopes.size()-2).trace;
-				if (f.size() > 0 && f.peek().vals.size() > 0) {
-					LAtom last = f.peek().vals.get(f.peek().vals.size()-1);
-					for(Tracer tracer : e.tracers) { tracer.output(name, last, true); }
+				Scope f = e.scopes.get(e.scopes.size()-2);
+				if (f.calls > 0 && f.peek().count > 0) {
+					LAtom last = f.peek().vals[f.peek().count-1];
+					e.trace(TraceBuffer.Kind.Output, s.code, true, last, null, null, 0);
 				}
 				else {
-					for(Tracer tracer : e.tracers) { tracer.stop(name, true); }
+					e.trace(TraceBuffer.Kind.Stop, s.code, true, null, null, null, 0);
 				}
 			}
 
-			e.scopes.pop();
+			if (s.repeat > 0) {
+				// rewind the scope in place for the next iteration:
+				s.repeat--;
+				s.index = 0;
+				s.code.invoked();
+				e.clear(s);
+				return true;
+			}
+
+			e.pop();
 			return true;
 		}
 
-		if (s.code.toBlocks.containsKey(s.code.item(s.index))) {
-			LAtom atom = s.code.item(s.index);
-			String val = s.code.toBlocks.get(atom);
-			for(Tracer tracer : e.tracers) { tracer.define(val); }
+		if (e.tracing && s.code.toBlocks.containsKey(s.code.item(s.index))) {
+			e.trace(TraceBuffer.Kind.Define, s.code.toBlocks.get(s.code.item(s.index)));
 		}
 
+		if (!Primitives.prim(s.code)) { s.code.ticks++; }
+		if (COMPILE && !e.tracing && s.code.invocations >= LINK_THRESHOLD) {
+			if (s.code.linked == null) { s.code.linked = Linker.link(e, s.code); }
+			Node n = s.code.linked[s.index];
+			if (n != null && n.valid(e)) {
+				s.index += n.width;
+				e.value(n.eval(e));
+				return true;
+			}
+		}
+
+		// the scope may be popped and reused by the time eval() returns:
+		int serial = s.serial;
 		s.code.item(s.index).eval(e);
-		s.index++;
+		if (s.serial == serial) { s.index++; }
 		return true;
 	}
 
+	private static void invoke(Environment e, Func f) {
+		LAtom[] args = new LAtom[f.count];
+		System.arraycopy(f.vals, 0, args, 0, f.count);
+
+		if (e.tracing) {
+			e.trace(TraceBuffer.Kind.CallPrimitive, f.code, false, null, f.args, f.vals, f.count);
+		}
+
+		// primitives are applied directly, without a scope of their own:
+		LAtom r = ((Primitive)f.code.first()).apply(e, args);
+		if (r != null) {
+			e.allocate(r);
+			e.value(r);
+		}
+	}
+
 	private static boolean newScope(Environment e, LList code) {
 		Scope outer = null;
 		for(int z = e.scopes.size()-1; z >= 1; z--) {
@@ -187,11 +297,13 @@ public class Interpreter {
 			}
 		}
 		if (canTail(outer, e, code)) {
-			// smash the call stack down to the tail procedure
-			while(e.scopes.peek() != outer) { e.scopes.pop(); }
+			// smash the call stack down to the calling procedure
+			// and reuse its scope for the tail procedure:
+			while(e.scopes.peek() != outer) { e.pop(); }
+			outer.code  = code;
 			outer.index = 0;
-			outer.trace.clear();
-			outer.bindings.clear();
+			e.clearCalls(outer);
+			e.clear(outer);
 			return true;
 		}
 		else {
@@ -201,31 +313,62 @@ public class Interpreter {
 		}
 	}
 
-	private static boolean canTail(Scope s, Environment e, LList target) {
-		if (s == null)               { return false; } // we must be in a procedure.
-		if (!s.code.equals(target))  { return false; } // our procedure must match our target.
-
-		// if the procedure has not been fully evaluated,
-		// the next operation must be a call to 'stop':
-		if (s.index < s.code.size()) {
-			LAtom next = e.scopes.peek().code.item(e.scopes.peek().index);
-			if (!(next instanceof LWord)) { return false; }
-			LWord nword = (LWord)next;
-			if (nword.type != LWord.Type.Call) { return false; }
-			if (!"stop".equals(nword.value)) { return false; }
-		}
-
-		// we can tail-call if we're a base statement in our procedure:
-		if (s.trace.size() == 0) { return true; }
+	private static boolean canTail(Scope outer, Environment e, LList target) {
+		if (outer == null)           { return false; } // we must be in a procedure.
+		if (Primitives.prim(target)) { return false; } // primitives always get a scope.
+		if (!shadows(outer, e, target)) { return false; } // callees see their caller's bindings.
 
-		// we can tail-call if our result flows to an output:
-		if (s.trace.size() == 1) {
-			LAtom caller = s.trace.peek().code.first();
+		// we can tail-call if our result flows to an output,
+		// since that will discard everything down to our procedure:
+		Scope top = e.scopes.peek();
+		if (top.calls == 1) {
+			LAtom caller = top.peek().code.first();
 			if (caller instanceof LWord) {
 				LWord word = (LWord)caller;
 				if (word.type == LWord.Type.Prim && word.value.equals("output")) { return true; }
 			}
 		}
+
+		// otherwise we must be a base statement in our procedure
+		// or in the blocks it is running. Each of those scopes must
+		// be exhausted, unless the next operation is a call to 'stop',
+		// which will discard everything down to our procedure:
+		for(int z = e.scopes.size()-1; z >= outer.depth; z--) {
+			Scope s = e.scopes.get(z);
+			if (s.calls  > 0) { return false; }
+			if (s.repeat > 0) { return false; }
+			if (s.index < s.code.size()) {
+				LAtom next = s.code.item(s.index);
+				if (!(next instanceof LWord)) { return false; }
+				LWord nword = (LWord)next;
+				if (nword.type != LWord.Type.Call) { return false; }
+				if (!"stop".equals(nword.value)) { return false; }
+				return true;
+			}
+		}
+		return true;
+	}
+
+	// scope is dynamic, so discarding the bindings of our procedure
+	// is only safe if the tail procedure will hide every one of them
+	// with its own arguments. A procedure calling itself has always
+	// reused its own scope:
+	private static boolean shadows(Scope outer, Environment e, LList target) {
+		if (target == outer.code) { return true; }
+		for(int z = outer.depth; z < e.scopes.size(); z++) {
+			Scope s = e.scopes.get(z);
+			for(int b = 0; b < s.bound; b++) {
+				if (!binds(target, s.names[b])) { return false; }
+			}
+		}
+		return true;
+	}
+
+	private static boolean binds(LList target, LWord name) {
+		if (target.arguments == null) { return false; }
+		for(int z = 0; z < target.arguments.size(); z++) {
+			if (name.equals(target.arguments.item(z))) { return true; }
+		}
 		return false;
 	}
-}
\ No newline at end of file
+}
@@ -5,6 +5,9 @@ import java.util.*;
 /**
 * LList is an list implementation which exposes
 * methods equivalent to Logo primitive list operations.
+* Lists are immutable slices of arrays which they may share,
+* so butFirst, butLast and member take constant time, and fput,
+* lput and join can often extend an array in place instead of copying it.
 *
 * @author John Earnest
 **/
@@ -16,31 +19,108 @@ public class LList implements LAtom {
 	/** if a to...end block, a cache of the original source code generating this body. **/
 	public String sourceText = "";
 
-	private final List<LAtom> values = new ArrayList<LAtom>();
-	final Map<LWord, String> toBlocks = new IdentityHashMap<LWord, String>();
+	// a list is a slice of an array which may be shared with other lists.
+	// items within a slice are never changed, so slices can be taken
+	// in constant time without copying anything:
+	private final Store store;
+	private final LAtom[] values;
+	private final int offset;
+	private final int size;
+
+	// arrays no longer than this are always shared by their slices:
+	private static final int MIN_SHARED = 32;
+
+	// the local words of any to...end blocks in this list and the
+	// names they define. most lists have none, so this is allocated on demand:
+	private static final Map<LWord, String> NO_BLOCKS = Collections.emptyMap();
+	Map<LWord, String> toBlocks = NO_BLOCKS;
+
+	/**
+	* The execution strategies a list of code may be promoted to.
+	* See {@link #tier}.
+	**/
+	public enum Tier {
+		/** Evaluated one word at a time by the Interpreter.      **/ Interpreted,
+		/** Expressions of kernel primitives linked into trees.   **/ Linked,
+		/** Compiled into a JVM class, when used as a procedure. **/ Compiled
+	}
+
+	// profiling counters maintained by the Interpreter. they
+	// are updated without synchronization, even when the list
+	// is shared by Environments running on several threads:
+	int  invocations = 0;
+	long ticks       = 0;
+
+	// expression trees built by the Linker once this list is hot:
+	Node[] linked = null;
+
+	// compiled code, if this list has been compiled as a procedure,
+	// and the invocation count when compiled code was last discarded:
+	Jit jit = null;
+	int discarded = 0;
+
+	// the name this list was first bound to, used to find the
+	// name of a procedure quickly. see Environment.getName():
+	LWord name = null;
+
+	// the name this list was last traced under, as a procedure:
+	TraceName traceName = null;
 
 	/**
 	* Construct a new, empty LList.
 	**/
 	public LList() {
-		this.arguments = null;
+		this(null, Store.EMPTY, 0, 0, 1);
 	}
 
 	LList(LList base, LList arguments) {
-		this.values.addAll(base.values);
-		this.arguments = arguments;
+		this(arguments, base.store, base.offset, base.size, base.loadFactor);
 	}
 
 	LList(LAtom single, LList arguments) {
-		this.values.add(single);
-		this.arguments = arguments;
+		this(arguments, new Store(new LAtom[] { single }), 0, 1, -1);
+	}
+
+	LList(List<LAtom> items) {
+		this(null, new Store(items.toArray(new LAtom[items.size()])), 0, items.size(), -1);
 	}
 
 	LList(LWord[] names) {
-		this();
-		for(LWord w : names) {
-			this.values.add(w);
+		this(null, new Store(names.clone()), 0, names.length, -1);
+	}
+
+	private LList(LList arguments, Store store, int offset, int size, int load) {
+		this.arguments  = arguments;
+		this.store      = store;
+		this.values     = store.items;
+		this.offset     = offset;
+		this.size       = size;
+		this.loadFactor = load;
+	}
+
+	// a slice of this list. its load is derived from ours if
+	// we know it, given the load of the items which differ.
+	// load counts only the items of a list, so a slice much
+	// smaller than a large array is copied rather than keeping
+	// the rest of the array alive:
+	private LList slice(int offset, int size, int delta) {
+		int load = loadFactor < 0 ? -1 : loadFactor + delta;
+		if (store.items.length > MIN_SHARED && size * 4 < store.items.length) {
+			LAtom[] items = new LAtom[size];
+			System.arraycopy(values, offset, items, 0, size);
+			return new LList(null, new Store(items), 0, size, load);
 		}
+		return new LList(null, store, offset, size, load);
+	}
+
+	// record the name defined by a to...end block in this list:
+	void defineBlock(LWord local, String name) {
+		if (toBlocks == NO_BLOCKS) { toBlocks = new IdentityHashMap<LWord, String>(); }
+		toBlocks.put(local, name);
+	}
+
+	void defineBlocks(Map<LWord, String> blocks) {
+		for(Map.Entry<LWord, String> b : blocks.entrySet()) { defineBlock(b.getKey(), b.getValue()); }
 	}
 
 	public void eval(Environment e) {
@@ -48,19 +128,30 @@ public class LList implements LAtom {
 	}
 
 	public int hashCode() {
-		return values.hashCode();
+		// the same as the hashCode of a java.util.List:
+		int ret = 1;
+		for(int z = 0; z < size; z++) {
+			ret = 31 * ret + values[offset + z].hashCode();
+		}
+		return ret;
 	}
 
 	public boolean equals(Object o) {
 		if (!(o instanceof LList)) { return false; }
-		return values.equals(((LList)o).values);
+		LList other = (LList)o;
+		if (other.size != size) { return false; }
+		if (other.values == values && other.offset == offset) { return true; }
+		for(int z = 0; z < size; z++) {
+			if (!values[offset + z].equals(other.values[other.offset + z])) { return false; }
+		}
+		return true;
 	}
 
 	public String toString() {
 		StringBuilder ret = new StringBuilder("[");
-		for(int z = 0; z < values.size(); z++) {
+		for(int z = 0; z < size; z++) {
 			if (z > 0) { ret.append(' '); }
-			ret.append(values.get(z).toString());
+			ret.append(values[offset + z].toString());
 		}
 		ret.append("]");
 		return ret.toString();
@@ -70,7 +161,7 @@ public class LList implements LAtom {
 	* Return the number of items in this list.
 	**/
 	public int size() {
-		return values.size();
+		return size;
 	}
 
 	/**
@@ -80,46 +171,40 @@ public class LList implements LAtom {
 	* @param index the zero-indexed position of the object to extract.
 	**/
 	public LAtom item(int index) {
-		if (index < 0 || index >= values.size()) { return new LList(); }
-		return values.get(index);
+		if (index < 0 || index >= size) { return new LList(); }
+		return values[offset + index];
 	}
 	
 	/**
 	* Return the first item in this list or an empty list.
 	**/
 	public LAtom first() {
-		if (values.size() < 1) { return new LList(); }
-		return values.get(0);
+		if (size < 1) { return new LList(); }
+		return values[offset];
 	}
 
 	/**
 	* Return the last item in this list or an empty list.
 	**/
 	public LAtom last() {
-		if (values.size() < 1) { return new LList(); }
-		return values.get(values.size()-1);
+		if (size < 1) { return new LList(); }
+		return values[offset + size - 1];
 	}
 
 	/**
 	* Return a list containing everything in this list except the first item.
 	**/
 	public LList butFirst() {
-		LList ret = new LList();
-		for(int z = 1; z < values.size(); z++) {
-			ret.values.add(values.get(z));
-		}
-		return ret;
+		if (size < 1) { return new LList(); }
+		return slice(offset + 1, size - 1, -values[offset].load());
 	}
 
 	/**
 	* Return a list containing everything in this list except the last item.
 	**/
 	public LList butLast() {
-		LList ret = new LList();
-		for(int z = 0; z < values.size()-1; z++) {
-			ret.values.add(values.get(z));
-		}
-		return ret;		
+		if (size < 1) { return new LList(); }
+		return slice(offset, size - 1, -values[offset + size - 1].load());
 	}
 
 	/**
@@ -128,10 +213,18 @@ public class LList implements LAtom {
 	* @param o the new list's first item.
 	**/
 	public LList fput(LAtom o) {
-		LList ret = new LList();
-		ret.values.addAll(values);
-		ret.values.add(0, o);
-		return ret;
+		int delta = loadFactor < 0 ? 0 : o.load();
+		if (store.claimFront(offset)) {
+			values[offset - 1] = o;
+			return slice(offset - 1, size + 1, delta);
+		}
+		// leave room to put more items in front of the copy:
+		LAtom[] items = new LAtom[Math.max(8, size * 2 + 1)];
+		int start = items.length - size - 1;
+		items[start] = o;
+		System.arraycopy(values, offset, items, start + 1, size);
+		Store s = new Store(items, start, items.length);
+		return new LList(null, s, start, size + 1, loadFactor < 0 ? -1 : loadFactor + delta);
 	}
 
 	/**
@@ -140,10 +233,17 @@ public class LList implements LAtom {
 	* @param o the new list's last item.
 	**/
 	public LList lput(LAtom o) {
-		LList ret = new LList();
-		ret.values.addAll(values);
-		ret.values.add(o);
-		return ret;
+		int delta = loadFactor < 0 ? 0 : o.load();
+		if (store.claimBack(offset + size, 1)) {
+			values[offset + size] = o;
+			return slice(offset, size + 1, delta);
+		}
+		// leave room to put more items after the copy:
+		LAtom[] items = new LAtom[Math.max(8, size * 2 + 1)];
+		System.arraycopy(values, offset, items, 0, size);
+		items[size] = o;
+		Store s = new Store(items, 0, size + 1);
+		return new LList(null, s, 0, size + 1, loadFactor < 0 ? -1 : loadFactor + delta);
 	}
 
 	/**
@@ -151,16 +251,17 @@ public class LList implements LAtom {
 	* For example, flattening the list [1 2[[3]4][[]5]] would produce [1 2 3 4 5].
 	**/
 	public LList flatten() {
-		LList ret = new LList();
-		for(LAtom a : values) {
-			if (a instanceof LList) {
-				ret.values.addAll(((LList)a).flatten().values);
-			}
-			else {
-				ret.values.add(a);
-			}
+		List<LAtom> ret = new ArrayList<LAtom>(size);
+		flatten(ret);
+		return new LList(ret);
+	}
+
+	private void flatten(List<LAtom> ret) {
+		for(int z = 0; z < size; z++) {
+			LAtom a = values[offset + z];
+			if (a instanceof LList) { ((LList)a).flatten(ret); }
+			else                    { ret.add(a); }
 		}
-		return ret;
 	}
 
 	/**
@@ -172,14 +273,11 @@ public class LList implements LAtom {
 	* @param o the item to search for.
 	**/
 	public LList member(LAtom o) {
-		for(int z = 0; z < values.size(); z++) {
-			if (o.equals(values.get(z))) {
-				LList ret = new LList();
-				for(; z < values.size(); z++) {
-					ret.values.add(values.get(z));
-				}
-				return ret;
-			}
+		int delta = 0;
+		for(int z = 0; z < size; z++) {
+			LAtom a = values[offset + z];
+			if (o.equals(a)) { return slice(offset + z, size - z, delta); }
+			if (loadFactor >= 0) { delta -= a.load(); }
 		}
 		return new LList();
 	}
@@ -191,20 +289,103 @@ public class LList implements LAtom {
 	* @param after the list of elements to concatenate with this list.
 	**/
 	public LList join(LList after) {
-		LList ret = new LList();
-		ret.values.addAll(values);
-		ret.values.addAll(after.values);
-		return ret;
+		if (after.size == 0) { return slice(offset, size, 0); }
+		if (size == 0) { return after.slice(after.offset, after.size, 0); }
+		int load = loadFactor < 0 || after.loadFactor < 0 ? -1 : loadFactor + after.loadFactor - 1;
+		if (store.claimBack(offset + size, after.size)) {
+			System.arraycopy(after.values, after.offset, values, offset + size, after.size);
+			return new LList(null, store, offset, size + after.size, load);
+		}
+		// leave room to put more items after the copy:
+		LAtom[] items = new LAtom[Math.max(8, (size + after.size) * 2)];
+		System.arraycopy(      values,       offset, items,    0,       size);
+		System.arraycopy(after.values, after.offset, items, size, after.size);
+		Store s = new Store(items, 0, size + after.size);
+		return new LList(null, s, 0, size + after.size, load);
+	}
+
+	// count an invocation, stopping at the largest int
+	// rather than overflowing and demoting a hot list:
+	void invoked() {
+		if (invocations < Integer.MAX_VALUE) { invocations++; }
+	}
+
+	/**
+	* Return the number of times the Interpreter has begun executing
+	* this list, as a procedure body, as a block of code or as a program.
+	* Calls made from within compiled code are not counted, nor are calls
+	* to primitives. The count stops at Integer.MAX_VALUE. Lists used by
+	* Environments on several threads at once are counted without
+	* synchronization, so their counts are approximate.
+	**/
+	public int invocations() {
+		return invocations;
+	}
+
+	/**
+	* Return the number of ticks the Interpreter has spent
+	* evaluating the contents of this list. Like {@link #invocations},
+	* this is approximate for lists used on several threads at once.
+	**/
+	public long ticks() {
+		return ticks;
+	}
+
+	/**
+	* Return the fastest execution strategy this list
+	* has been promoted to. See {@link com.bme.logo.Interpreter#LINK_THRESHOLD}
+	* and {@link com.bme.logo.Interpreter#COMPILE_THRESHOLD}.
+	**/
+	public Tier tier() {
+		Jit j = jit;
+		if (j != null && j != Jit.FAILED) { return Tier.Compiled; }
+		if (linked != null) { return Tier.Linked; }
+		return Tier.Interpreted;
 	}
 
 	private int loadFactor = -1;
 	public int load() {
 		if (loadFactor < 0) {
-			loadFactor = 1;
-			for(LAtom a : values) {
-				loadFactor += a.load();
+			int load = 1;
+			for(int z = 0; z < size; z++) {
+				load += values[offset + z].load();
 			}
+			loadFactor = load;
 		}
 		return loadFactor;
 	}
+}
+
+// the array behind one or more lists. only the items between
+// lo and hi belong to any list. a list which ends at hi or begins
+// at lo may grow into the rest of the array in place, by claiming
+// the neighbouring items before any other list can:
+final class Store {
+	static final Store EMPTY = new Store(new LAtom[0]);
+
+	final LAtom[] items;
+	private int lo;
+	private int hi;
+
+	Store(LAtom[] items) {
+		this(items, 0, items.length);
+	}
+
+	Store(LAtom[] items, int lo, int hi) {
+		this.items = items;
+		this.lo    = lo;
+		this.hi    = hi;
+	}
+
+	synchronized boolean claimFront(int start) {
+		if (start != lo || lo == 0) { return false; }
+		lo--;
+		return true;
+	}
+
+	synchronized boolean claimBack(int end, int count) {
+		if (end != hi || hi + count > items.length) { return false; }
+		hi += count;
+		return true;
+	}
 }
\ No newline at end of file
@@ -28,6 +28,9 @@ public class LWord implements LAtom, Comparable<LWord> {
 	/** The String value of the name of this word. **/
 	public final String value;
 
+	// the procedure this word last resolved to, when used as a call site:
+	Link link = null;
+
 	/**
 	* Construct a new LWord with a given type and value.
 	*
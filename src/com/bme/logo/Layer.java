@@ -0,0 +1,98 @@
+package com.bme.logo;
+
+import java.util.*;
+
+/**
+* A Layer is a frozen, immutable set of global bindings which
+* any number of Environments may read through. An Environment
+* constructed on a Layer begins with every binding in the Layer
+* visible, but only copies a binding into its own global scope
+* when the name is first used, so creating one is cheap.
+* Rebinding or erasing a name affects only the Environment
+* which did so, and never the Layer or its other readers.
+*
+* Layers are obtained from {@link com.bme.logo.Environment#freeze}
+* or loaded from a file by {@link com.bme.logo.ImageFile#load}.
+* The kernel primitives are kept in a Layer shared by every
+* Environment which {@link com.bme.logo.Primitives#kernel} creates.
+* Because the values in a Layer are shared, any primitives
+* they contain must not keep state of their own.
+*
+* @author John Earnest
+**/
+
+public final class Layer {
+
+	// bindings held in memory. these take precedence over the image:
+	private final Map<LWord, LAtom> values;
+
+	// bindings which are decoded from an image as they are used,
+	// and the names of any image bindings which are not visible:
+	private final ImageFile image;
+	private final Set<LWord> hidden;
+
+	private final Set<LWord> words;
+
+	// the sum of the loads of every value in this layer:
+	final int load;
+
+	Layer(Map<LWord, LAtom> values, ImageFile image, Set<LWord> hidden) {
+		this.values = Collections.unmodifiableMap(new HashMap<LWord, LAtom>(values));
+		this.image  = image;
+		this.hidden = Collections.unmodifiableSet(new HashSet<LWord>(hidden));
+
+		Set<LWord> words = new HashSet<LWord>(values.keySet());
+		int load = 0;
+		for(LAtom a : values.values()) { load += a.load(); }
+		if (image != null) {
+			for(LWord name : image.words()) {
+				if (hidden.contains(name) || !words.add(name)) { continue; }
+				load += image.load(name);
+			}
+		}
+		this.words = Collections.unmodifiableSet(words);
+		this.load  = load;
+	}
+
+	// the image bindings of this layer, or null:
+	ImageFile image() {
+		return image;
+	}
+
+	// the names of image bindings which are not visible:
+	Set<LWord> hidden() {
+		return hidden;
+	}
+
+	LAtom get(LWord name) {
+		LAtom ret = values.get(name);
+		if (ret != null || image == null || hidden.contains(name)) { return ret; }
+		return image.get(name);
+	}
+
+	// like get(), but without decoding any values:
+	LAtom peek(LWord name) {
+		LAtom ret = values.get(name);
+		if (ret != null || image == null || hidden.contains(name)) { return ret; }
+		return image.peek(name);
+	}
+
+	// the in-memory bindings of this layer, excluding any image:
+	Map<LWord, LAtom> values() {
+		return values;
+	}
+
+	/**
+	* Return the number of bindings in this Layer.
+	**/
+	public int size() {
+		return words.size();
+	}
+
+	/**
+	* Return the Set of names bound in this Layer.
+	**/
+	public Set<LWord> words() {
+		return words;
+	}
+}
@@ -0,0 +1,93 @@
+package com.bme.logo;
+
+/**
+* Limits describes the resources an Environment may consume
+* while executing programs. Each Environment has its own Limits,
+* which are checked by the Interpreter as it runs. Exceeding a limit
+* produces a {@link com.bme.logo.RuntimeError} of a corresponding type.
+* Limits may be shared between Environments or changed at any time.
+*
+* @author John Earnest
+**/
+
+public class Limits {
+
+	/**
+	* The number of activation frames which may be created before
+	* signaling a stack overflow. If this is set to 0, no limit will
+	* be enforced. Defaults to {@link com.bme.logo.Interpreter#RECURSION_LIMIT}.
+	**/
+	public int frames = Interpreter.RECURSION_LIMIT;
+
+	/**
+	* The total load of the live bindings in an Environment which may
+	* be reached before signaling an out of memory error. If this is set
+	* to -1, no limit will be enforced. Defaults to
+	* {@link com.bme.logo.Interpreter#MEMORY_LIMIT}.
+	**/
+	public int load = Interpreter.MEMORY_LIMIT;
+
+	/**
+	* The total number of ticks an Environment may execute.
+	* See {@link com.bme.logo.Environment#ticks}. If this is set
+	* to -1, no limit will be enforced. Defaults to -1.
+	*
+	* The cost of code in ticks depends on how it is run. The Interpreter
+	* charges a tick for each word, but a linked expression costs a single
+	* tick however many primitives it applies, and compiled code costs a
+	* tick per procedure body or loop iteration. A program therefore uses
+	* fewer ticks once its code is hot. Set {@link com.bme.logo.Interpreter#COMPILE}
+	* to false if the count must not depend on how often code has run.
+	**/
+	public long ticks = -1;
+
+	/**
+	* The total load of the atoms which primitives may produce in an Environment.
+	* See {@link com.bme.logo.Environment#atoms}. If this is set
+	* to -1, no limit will be enforced. Defaults to -1.
+	**/
+	public long atoms = -1;
+
+	/**
+	* A time, as given by System.currentTimeMillis(), after which
+	* execution will be halted. The clock is only consulted every
+	* 1024 ticks, so a program may overrun the deadline slightly.
+	* If this is set to -1, no limit will be enforced. Defaults to -1.
+	**/
+	public long deadline = -1;
+
+	/**
+	* The number of procedures, innermost first, which the trace
+	* of a {@link com.bme.logo.RuntimeError} will include.
+	* If this is set to -1, the whole stack will be included. Defaults to -1.
+	**/
+	public int traceDepth = -1;
+
+	/**
+	* Construct a new set of Limits with the default values.
+	**/
+	public Limits() {}
+
+	/**
+	* Return a new set of Limits with the same values as this one.
+	**/
+	public Limits copy() {
+		Limits ret = new Limits();
+		ret.frames     = frames;
+		ret.load       = load;
+		ret.ticks      = ticks;
+		ret.atoms      = atoms;
+		ret.deadline   = deadline;
+		ret.traceDepth = traceDepth;
+		return ret;
+	}
+
+	/**
+	* Set the deadline a given number of milliseconds from now.
+	*
+	* @param millis the number of milliseconds execution may continue.
+	**/
+	public void timeout(long millis) {
+		deadline = System.currentTimeMillis() + millis;
+	}
+}
@@ -0,0 +1,183 @@
+package com.bme.logo;
+
+import java.util.*;
+
+/**
+* The Linker translates the body of an LList into a series
+* of pre-linked expression trees. Any expression which consists
+* solely of literals, variable references and calls to Primitives
+* has a fixed arity and cannot pause the Environment, so
+* it can be evaluated in a single step without pushing scopes
+* or collecting arguments one token at a time.
+* Everything else is left to the Interpreter.
+*
+* Arithmetic and comparisons whose arguments are all constant
+* are evaluated once, while linking. Like any other linked node,
+* a folded expression is only used while the Environment still
+* binds its procedure to the same kernel primitive, so rebinding
+* an operator with make, local or bind restores the original call.
+*
+* @author John Earnest
+**/
+
+class Linker {
+
+	// deterministic primitives which may be evaluated while linking:
+	private static final Set<String> foldable = new HashSet<String>(Arrays.asList(
+		"sum", "difference", "product", "quotient", "remainder",
+		"negate", "less?", "greater?", "equal?"
+	));
+
+	private Linker() {}
+
+	/**
+	* Link a chunk of code with respect to the current bindings
+	* of an Environment. The result is indexed by position within
+	* the code and contains null wherever an expression could not be linked.
+	*
+	* @param e the Environment in which to resolve procedure names.
+	* @param code the LList to link.
+	**/
+	static Node[] link(Environment e, LList code) {
+		Node[] ret = new Node[code.size()];
+		for(int z = 0; z < ret.length; z++) {
+			Node n = expression(e, code, z);
+			if (n instanceof Apply) { ret[z] = n; }
+		}
+		return ret;
+	}
+
+	private static Node expression(Environment e, LList code, int index) {
+		if (index >= code.size()) { return null; }
+		LAtom a = code.item(index);
+		if (!(a instanceof LWord)) { return new Const(a); }
+		LWord word = (LWord)a;
+		if (word.type == LWord.Type.Name)  { return new Const(word); }
+		if (word.type == LWord.Type.Value) { return new Var(word);   }
+		if (word.type != LWord.Type.Call)  { return null; }
+
+		LList target = e.resolve(word);
+		if (!Primitives.prim(target) || !(target.first() instanceof Primitive)) { return null; }
+		if (!((Primitive)target.first()).pure) { return null; }
+		Node[] args = new Node[target.arguments == null ? 0 : target.arguments.size()];
+		int width = 1;
+		for(int z = 0; z < args.length; z++) {
+			args[z] = expression(e, code, index + width);
+			if (args[z] == null) { return null; }
+			width += args[z].width;
+		}
+		Apply ret = new Apply(word, target, args, width);
+		LAtom value = fold(e, ret);
+		return value == null ? ret : new Folded(ret, value);
+	}
+
+	// evaluate an Apply of constants, or return null if it might fail:
+	private static LAtom fold(Environment e, Apply a) {
+		if (!foldable.contains(a.prim.value)) { return null; }
+		LAtom[] vals = new LAtom[a.args.length];
+		for(int z = 0; z < vals.length; z++) {
+			if      (a.args[z] instanceof Const)  { vals[z] = ((Const)a.args[z]).value;  }
+			else if (a.args[z] instanceof Folded) { vals[z] = ((Folded)a.args[z]).value; }
+			else { return null; }
+		}
+		// check the arguments here so that no RuntimeError is ever built:
+		if (!"equal?".equals(a.prim.value)) {
+			for(LAtom v : vals) {
+				if (!(v instanceof LNumber)) { return null; }
+			}
+		}
+		if ("quotient".equals(a.prim.value) || "remainder".equals(a.prim.value)) {
+			if (((LNumber)vals[1]).value == 0) { return null; }
+		}
+		Metrics m = e.metrics;
+		if (m != null) { m.folded++; }
+		return a.prim.apply(e, vals);
+	}
+}
+
+abstract class Node {
+	// the number of items of code this node spans
+	final int width;
+
+	Node(int width) { this.width = width; }
+
+	// ensure every procedure this node calls is still bound as it was linked
+	abstract boolean valid(Environment e);
+
+	abstract LAtom eval(Environment e);
+}
+
+class Const extends Node {
+	final LAtom value;
+
+	Const(LAtom value) {
+		super(1);
+		this.value = value;
+	}
+
+	boolean valid(Environment e)  { return true;  }
+	LAtom   eval(Environment e)   { return value; }
+}
+
+class Var extends Node {
+	final LWord name;
+
+	Var(LWord name) {
+		super(1);
+		this.name = name;
+	}
+
+	boolean valid(Environment e)  { return true;         }
+	LAtom   eval(Environment e)   { return e.thing(name); }
+}
+
+class Apply extends Node {
+	final LWord name;
+	final LList target;
+	final Primitive prim;
+	final Node[] args;
+
+	Apply(LWord name, LList target, Node[] args, int width) {
+		super(width);
+		this.name   = name;
+		this.target = target;
+		this.prim   = (Primitive)target.first();
+		this.args   = args;
+	}
+
+	boolean valid(Environment e) {
+		if (e.resolve(name) != target) { return false; }
+		for(Node n : args) {
+			if (!n.valid(e)) { return false; }
+		}
+		return true;
+	}
+
+	LAtom eval(Environment e) {
+		LAtom[] vals = new LAtom[args.length];
+		for(int z = 0; z < vals.length; z++) {
+			vals[z] = args[z].eval(e);
+		}
+		Metrics m = e.metrics;
+		if (m != null) { m.primitive(target); }
+		LAtom r = prim.apply(e, vals);
+		e.allocate(r);
+		return r;
+	}
+}
+
+class Folded extends Apply {
+	final LAtom value;
+
+	Folded(Apply a, LAtom value) {
+		super(a.name, a.target, a.args, a.width);
+		this.value = value;
+	}
+
+	LAtom eval(Environment e) {
+		Metrics m = e.metrics;
+		if (m != null) { m.primitive(target); }
+		e.allocate(value);
+		return value;
+	}
+}
@@ -0,0 +1,133 @@
+package com.bme.logo;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+* <p>Metrics collects measurements of the health of a running
+* Environment, and can publish them as an MBean for monitoring
+* tools. An Environment collects nothing until its Metrics are
+* first requested with {@link com.bme.logo.Environment#metrics}.
+* After that, the thread running it keeps a handful of counters
+* as procedures and primitives are called. Measurements
+* which the Environment keeps anyway, like its ticks, load and
+* stack depth, cost nothing until they are read.</p>
+*
+* <p>Metrics may be read from any thread. While the Environment
+* is running, the counters may lag slightly behind it.</p>
+*
+* @author John Earnest
+**/
+
+public class Metrics implements MetricsMBean {
+
+	private final Environment env;
+
+	// written only by the thread running the environment:
+	long calls     = 0;
+	long tailCalls = 0;
+	long folded    = 0;
+	// primitives are numbered in the order this environment first calls them,
+	// since the kernel's primitives are shared by every environment:
+	private final Map<LList, Integer> ids = new IdentityHashMap<LList, Integer>();
+	private long [] primCalls  = new long [64];
+	private LList[] primitives = new LList[64];
+	private final long[] errors = new long[RuntimeError.Type.values().length];
+
+	// pause() and resume() may be called from any thread:
+	final AtomicLong pauses  = new AtomicLong();
+	final AtomicLong resumes = new AtomicLong();
+
+	private ObjectName registered = null;
+
+	Metrics(Environment env) {
+		this.env = env;
+	}
+
+	// count an invocation of a primitive procedure:
+	void primitive(LList code) {
+		Integer id = ids.get(code);
+		if (id == null) {
+			id = ids.size();
+			if (id >= primCalls.length) {
+				long [] c = new long [primCalls.length * 2];
+				LList[] p = new LList[primCalls.length * 2];
+				System.arraycopy(primCalls,  0, c, 0, primCalls.length);
+				System.arraycopy(primitives, 0, p, 0, primitives.length);
+				primitives = p;
+				primCalls  = c;
+			}
+			ids.put(code, id);
+			primitives[id] = code;
+		}
+		primCalls[id]++;
+	}
+
+	void error(RuntimeError.Type type) {
+		errors[type.ordinal()]++;
+	}
+
+	public long getTicks()      { return env.ticks();        }
+	public long getCalls()      { return calls;              }
+	public long getTailCalls()  { return tailCalls;          }
+	public long getFolded()     { return folded;             }
+	public int  getDepth()      { return env.scopes.size();  }
+	public int  getPeakDepth()  { return env.peak;           }
+	public int  getLoad()       { return env.load;           }
+	public int  getLoadLimit()  { return env.limits.load;    }
+	public long getPauses()     { return pauses.get();       }
+	public long getResumes()    { return resumes.get();      }
+
+	public Map<String, Long> getPrimitiveCalls() {
+		// the arrays may be replaced while we read them:
+		LList[] p = primitives;
+		long [] c = primCalls;
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		for(int z = 0; z < Math.min(p.length, c.length); z++) {
+			if (p[z] == null) { continue; }
+			// primitives bound under the same name are reported together:
+			String name = ((LWord)p[z].first()).value;
+			Long n = ret.get(name);
+			ret.put(name, (n == null ? 0 : n) + c[z]);
+		}
+		return ret;
+	}
+
+	public Map<String, Long> getErrors() {
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		for(RuntimeError.Type t : RuntimeError.Type.values()) {
+			if (errors[t.ordinal()] > 0) { ret.put(t.name(), errors[t.ordinal()]); }
+		}
+		return ret;
+	}
+
+	/**
+	* Publish these Metrics as an MBean in the platform MBeanServer,
+	* under the ObjectName {@code com.bme.logo:type=Environment,name=}<i>name</i>.
+	* If they have already been published, they are first unregistered.
+	*
+	* @param name a name which identifies the Environment.
+	* @return the ObjectName under which the MBean was registered.
+	* @throws JMException if the name is malformed or already in use.
+	**/
+	public synchronized ObjectName register(String name) throws JMException {
+		unregister();
+		ObjectName n = new ObjectName("com.bme.logo:type=Environment,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+		registered = n;
+		return n;
+	}
+
+	/**
+	* Remove these Metrics from the platform MBeanServer,
+	* if they have been published with {@link #register}.
+	**/
+	public synchronized void unregister() {
+		if (registered == null) { return; }
+		try { ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered); }
+		catch(JMException e) {}
+		registered = null;
+	}
+}
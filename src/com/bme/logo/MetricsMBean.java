@@ -0,0 +1,53 @@
+package com.bme.logo;
+
+import java.util.Map;
+
+/**
+* The management interface of {@link com.bme.logo.Metrics},
+* through which the measurements of an Environment are
+* published as attributes of an MBean.
+*
+* @author John Earnest
+**/
+
+public interface MetricsMBean {
+
+	/** Return the total number of ticks the Environment has executed. **/
+	long getTicks();
+
+	/**
+	* Return the number of procedures called with a scope of their own,
+	* or as compiled code. Calls made within compiled code are not counted.
+	**/
+	long getCalls();
+
+	/** Return the number of procedures called in place of their caller. **/
+	long getTailCalls();
+
+	/** Return the number of constant expressions evaluated once while linking code. **/
+	long getFolded();
+
+	/** Return the number of scopes currently on the stack, including the global scope. **/
+	int getDepth();
+
+	/** Return the greatest number of scopes there have ever been on the stack. **/
+	int getPeakDepth();
+
+	/** Return the total load of every live binding. **/
+	int getLoad();
+
+	/** Return the greatest load the Environment's Limits allow, or -1 if there is no limit. **/
+	int getLoadLimit();
+
+	/** Return the number of times the Environment has been paused. **/
+	long getPauses();
+
+	/** Return the number of times the Environment has been resumed after a pause. **/
+	long getResumes();
+
+	/** Return the number of times each primitive has been invoked, by name. **/
+	Map<String, Long> getPrimitiveCalls();
+
+	/** Return the number of RuntimeErrors of each Type which have occurred, by Type. **/
+	Map<String, Long> getErrors();
+}
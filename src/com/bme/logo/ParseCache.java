@@ -0,0 +1,196 @@
+package com.bme.logo;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+* A ParseCache keeps the parsed form of source text in a directory,
+* so that programs which are run repeatedly do not have to be parsed
+* again each time. Entries are keyed by a SHA-256 hash of the source text,
+* and record the same information {@link com.bme.logo.Parser#parse}
+* produces, including the source text of every to...end block.
+*
+* Every entry is checked against its key, the version of the cache format
+* and a checksum before it is used. An entry which fails any of these checks
+* is ignored, and the source text is parsed and the entry written again.
+* Entries are written to a temporary file and renamed into place, so a
+* directory may be shared by several processes, and a single ParseCache
+* may be used by several threads at once.
+*
+* @author John Earnest
+**/
+
+public class ParseCache {
+
+	/**
+	* The version of the entry format written by this class.
+	* Entries with any other version are parsed again.
+	**/
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = 0x4d4c5043; // 'MLPC'
+	private static final String SUFFIX = ".lpc";
+
+	private final File directory;
+	private final AtomicInteger hits     = new AtomicInteger();
+	private final AtomicInteger misses   = new AtomicInteger();
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	/**
+	* Construct a new ParseCache which stores entries
+	* in a given directory, creating it if necessary.
+	*
+	* @param directory the directory in which to store entries.
+	**/
+	public ParseCache(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	/**
+	* Convert a String into an LList object, as with {@link com.bme.logo.Parser#parse},
+	* using the cached result of parsing the same String before if possible.
+	* Source text which contains syntax errors is never cached.
+	*
+	* @param s the String to parse.
+	**/
+	public LList parse(String s) {
+		byte[] hash = hash(s);
+		File entry = new File(directory, hex(hash) + SUFFIX);
+		LList ret = read(entry, hash);
+		if (ret != null) {
+			hits.incrementAndGet();
+			return ret;
+		}
+		misses.incrementAndGet();
+		ret = Parser.parse(s);
+		write(entry, hash, ret);
+		return ret;
+	}
+
+	/**
+	* Return the number of times source text was
+	* found in this cache, rather than parsed.
+	**/
+	public int hits() { return hits.get(); }
+
+	/**
+	* Return the number of times source text was parsed,
+	* including the times an entry was found but rejected.
+	**/
+	public int misses() { return misses.get(); }
+
+	/**
+	* Return the number of entries which were found to be
+	* corrupt or stale and parsed again.
+	**/
+	public int rejected() { return rejected.get(); }
+
+	private LList read(File entry, byte[] hash) {
+		if (!entry.isFile()) { return null; }
+		try {
+			ByteBuffer b = ByteBuffer.wrap(readFile(entry));
+			if (b.getInt() != MAGIC || b.getInt() != VERSION) { return reject(); }
+			byte[] key = new byte[hash.length];
+			b.get(key);
+			if (!MessageDigest.isEqual(key, hash)) { return reject(); }
+			int length = b.getInt();
+			int check  = b.getInt();
+			if (length != b.remaining()) { return reject(); }
+			CRC32 crc = new CRC32();
+			crc.update(b.array(), b.position(), length);
+			if ((int)crc.getValue() != check) { return reject(); }
+			LAtom ret = new Decoder(new LList[0]).atom(b);
+			if (b.hasRemaining() || !(ret instanceof LList)) { return reject(); }
+			return (LList)ret;
+		}
+		catch(IOException e) {
+			return null;
+		}
+		catch(RuntimeException e) {
+			// truncated or malformed data:
+			return reject();
+		}
+	}
+
+	private LList reject() {
+		rejected.incrementAndGet();
+		return null;
+	}
+
+	// writing an entry is best-effort: if the tree can't
+	// be encoded or the directory can't be written,
+	// the source will simply be parsed again next time.
+	private void write(File entry, byte[] hash, LList code) {
+		byte[] payload;
+		try {
+			Encoder enc = new Encoder();
+			enc.atom(code);
+			// parsed code never refers to primitives directly:
+			if (enc.prims.size() > 0) { return; }
+			payload = enc.toByteArray();
+		}
+		catch(IOException e)              { return; }
+		catch(IllegalArgumentException e) { return; }
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		File temp = null;
+		try {
+			temp = File.createTempFile("entry", ".tmp", directory);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.write(hash);
+				out.writeInt(payload.length);
+				out.writeInt((int)crc.getValue());
+				out.write(payload);
+			}
+			finally {
+				out.close();
+			}
+			if (!temp.renameTo(entry)) {
+				// some platforms will not rename over an existing file:
+				entry.delete();
+				if (temp.renameTo(entry)) { temp = null; }
+			}
+			else {
+				temp = null;
+			}
+		}
+		catch(IOException e) {}
+		finally {
+			if (temp != null) { temp.delete(); }
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			byte[] ret = new byte[(int)f.length()];
+			f.readFully(ret);
+			return ret;
+		}
+		finally {
+			f.close();
+		}
+	}
+
+	private static byte[] hash(String s) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+		}
+		catch(NoSuchAlgorithmException e)     { throw new Error(e); }
+		catch(UnsupportedEncodingException e) { throw new Error(e); }
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder ret = new StringBuilder();
+		for(byte b : bytes) { ret.append(String.format("%02x", b & 0xFF)); }
+		return ret.toString();
+	}
+}
@@ -41,16 +41,11 @@ public class Parser {
 	static final String token = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ.,!?";
 	static final String digit = "0123456789";
 
-	private static final LWord bind       = new LWord(LWord.Type.Call, "bind");
-	private static final LWord negate     = new LWord(LWord.Type.Call, "negate");
-	private static final LWord product    = new LWord(LWord.Type.Call, "product");
-	private static final LWord quotient   = new LWord(LWord.Type.Call, "quotient");
-	private static final LWord remainder  = new LWord(LWord.Type.Call, "remainder");
-	private static final LWord sum        = new LWord(LWord.Type.Call, "sum");
-	private static final LWord difference = new LWord(LWord.Type.Call, "difference");
-	private static final LWord greater    = new LWord(LWord.Type.Call, "greater?");
-	private static final LWord less       = new LWord(LWord.Type.Call, "less?");
-	private static final LWord equal      = new LWord(LWord.Type.Call, "equal?");
+	// the words which desugared forms call are created afresh for
+	// every parse, like any other word, so that each is its own call site:
+	private static LWord call(String name) {
+		return new LWord(LWord.Type.Call, name);
+	}
 
 	private static LAtom parseToken(Cursor c) {
 		if (c.match("["))   { return parseList(c); }
@@ -63,7 +58,7 @@ public class Parser {
 
 	private static LList infixUnary(Cursor c, LList r) {
 		if (c.signed())   { return r.lput(parseToken(c)); }
-		if (c.match("-")) { return infixUnary(c, r.lput(negate)); }
+		if (c.match("-")) { return infixUnary(c, r.lput(call("negate"))); }
 		if (c.match("(")) {
 			while(!c.match(")")) {
 				if (c.eof()) { throw new SyntaxError(c, MissingToken, ")"); }
@@ -113,31 +108,31 @@ public class Parser {
 			LWord taggedLocal = new LWord(LWord.Type.Call, "local");
 			c.toBlocks.put(taggedLocal, word.value);
 			if (args.size() < 1) { return r.lput(taggedLocal).lput(word).lput(body); }
-			return r.lput(taggedLocal).lput(word).lput(bind).lput(args).lput(body);
+			return r.lput(taggedLocal).lput(word).lput(call("bind")).lput(args).lput(body);
 		}
 		return r.lput(parseToken(c));
 	}
 
 	private static LList infixMul(Cursor c, LList r) {
 		LList b = infixUnary(c, new LList());
-		if (c.match("*")) { return infixMul(c, r.join(b.fput(product  ))); }
-		if (c.match("/")) { return infixMul(c, r.join(b.fput(quotient ))); }
-		if (c.match("%")) { return infixMul(c, r.join(b.fput(remainder))); }
+		if (c.match("*")) { return infixMul(c, r.join(b.fput(call("product")))); }
+		if (c.match("/")) { return infixMul(c, r.join(b.fput(call("quotient")))); }
+		if (c.match("%")) { return infixMul(c, r.join(b.fput(call("remainder")))); }
 		return r.join(b);
 	}
 
 	private static LList infixAdd(Cursor c, LList r) {
 		LList b = infixMul(c, new LList());
-		if (c.match("+")) { return infixAdd(c, r.join(b.fput(sum       ))); }
-		if (c.match("-")) { return infixAdd(c, r.join(b.fput(difference))); }
+		if (c.match("+")) { return infixAdd(c, r.join(b.fput(call("sum")))); }
+		if (c.match("-")) { return infixAdd(c, r.join(b.fput(call("difference")))); }
 		return r.join(b);
 	}
 
 	private static LList infix(Cursor c, LList r) {
 		LList b = infixAdd(c, new LList());
-		if (c.match(">")) { return infix(c, r.join(b.fput(greater))); }
-		if (c.match("<")) { return infix(c, r.join(b.fput(less   ))); }
-		if (c.match("=")) { return infix(c, r.join(b.fput(equal  ))); }
+		if (c.match(">")) { return infix(c, r.join(b.fput(call("greater?")))); }
+		if (c.match("<")) { return infix(c, r.join(b.fput(call("less?")))); }
+		if (c.match("=")) { return infix(c, r.join(b.fput(call("equal?")))); }
 		return r.join(b);
 	}
 
@@ -162,7 +157,7 @@ public class Parser {
 		while(!c.eof()) {
 			r = infixUnary(c, r);
 		}
-		r.toBlocks.putAll(c.toBlocks);
+		r.defineBlocks(c.toBlocks);
 		return r;
 	}
 
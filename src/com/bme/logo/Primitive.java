@@ -0,0 +1,57 @@
+package com.bme.logo;
+
+/**
+* A Primitive is a primitive procedure which receives its
+* arguments positionally rather than by looking them up
+* in the Environment. The Interpreter calls a Primitive directly
+* once its arguments have been collected, without creating a
+* scope for it, so this is the cheapest way to implement new
+* primitives. Install one with {@link com.bme.logo.Environment#bind}
+* just like any other primitive.
+*
+* A Primitive may pause the Environment or schedule code with
+* {@link com.bme.logo.Environment#push}, but it should return its
+* result rather than calling {@link com.bme.logo.Environment#output}.
+*
+* @author John Earnest
+**/
+
+public abstract class Primitive extends LWord {
+
+	// true if this primitive never pauses or touches scopes,
+	// so calls to it may be linked into expression trees.
+	final boolean pure;
+
+	/**
+	* Construct a new Primitive with a given name.
+	*
+	* @param name the name of the new Primitive.
+	**/
+	public Primitive(String name) {
+		this(name, false);
+	}
+
+	Primitive(String name, boolean pure) {
+		super(LWord.Type.Prim, name);
+		this.pure = pure;
+	}
+
+	/**
+	* Apply this primitive to a series of argument values.
+	*
+	* @param e the Environment used as a context for this primitive.
+	* @param args the argument values, in the order they were declared.
+	* @return the result of this primitive, or null if it produces none.
+	**/
+	public abstract LAtom apply(Environment e, LAtom[] args);
+
+	public void eval(Environment e) {
+		LList names = e.scopes.peek().code.arguments;
+		LAtom[] args = new LAtom[names.size()];
+		for(int z = 0; z < args.length; z++) {
+			args[z] = e.thing(Primitives.word(e, names.item(z)));
+		}
+		LAtom r = apply(e, args);
+		if (r != null) { e.output(r); }
+	}
+}
@@ -29,154 +29,169 @@ public class Primitives {
 	private static final LWord VALUE     = new LWord(LWord.Type.Name, "value");
 
 
+	/**
+	* Construct a new Environment with the kernel primitives loaded.
+	* The primitives are built once and shared by every Environment
+	* this method returns, through a frozen {@link com.bme.logo.Layer},
+	* so each new Environment holds only its own bindings.
+	**/
 	public static Environment kernel() {
+		return new Environment(Kernel.LAYER);
+	}
+
+	// the kernel layer is built on first use by the class loader:
+	private static class Kernel {
+		static final Layer LAYER = build().freeze();
+	}
+
+	private static Environment build() {
 		Environment e = new Environment();
 
 		// numeric primitives:
 
-		e.bind(new LWord(LWord.Type.Prim, "sum") {
-			public void eval(Environment e) {
-				e.output(new LNumber(num(e, A) + num(e, B)));
+		e.bind(new Primitive("sum", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LNumber(num(e, a[0]) + num(e, a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "difference") {
-			public void eval(Environment e) {
-				e.output(new LNumber(num(e, A) - num(e, B)));
+		e.bind(new Primitive("difference", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LNumber(num(e, a[0]) - num(e, a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "product") {
-			public void eval(Environment e) {
-				e.output(new LNumber(num(e, A) * num(e, B)));
+		e.bind(new Primitive("product", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LNumber(num(e, a[0]) * num(e, a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "quotient") {
-			public void eval(Environment e) {
-				e.output(new LNumber(num(e, A) / nonzero(e, B)));
+		e.bind(new Primitive("quotient", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LNumber(num(e, a[0]) / nonzero(e, a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "remainder") {
-			public void eval(Environment e) {
-				int x = num(e, A);
-				int y = nonzero(e, B);
+		e.bind(new Primitive("remainder", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				int x = num(e, a[0]);
+				int y = nonzero(e, a[1]);
 				x %= y;
-				e.output(new LNumber(x < 0 ? x+y : x));
+				return new LNumber(x < 0 ? x+y : x);
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "negate") {
-			public void eval(Environment e) {
-				e.output(new LNumber(num(e, A) * -1));
+		e.bind(new Primitive("negate", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LNumber(num(e, a[0]) * -1);
 			}
 		}, A);
-		e.bind(new LWord(LWord.Type.Prim, "less?") {
-			public void eval(Environment e) {
-				e.output(toBool(num(e, A) < num(e, B)));
+		e.bind(new Primitive("less?", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return toBool(num(e, a[0]) < num(e, a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "greater?") {
-			public void eval(Environment e) {
-				e.output(toBool(num(e, A) > num(e, B)));
+		e.bind(new Primitive("greater?", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return toBool(num(e, a[0]) > num(e, a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "equal?") {
-			public void eval(Environment e) {
-				e.output(toBool(e.thing(A).equals(e.thing(B))));
+		e.bind(new Primitive("equal?", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return toBool(a[0].equals(a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "random") {
-			public void eval(Environment e) {
-				e.output(new LNumber((int)(Math.random() * num(e, RANGE))));
+		e.bind(new Primitive("random", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LNumber((int)(Math.random() * num(e, a[0])));
 			}
 		}, RANGE);
 
 		// type conversions and predicates:
 		
-		e.bind(new LWord(LWord.Type.Prim, "word?") {
-			public void eval(Environment e) {
-				e.output(toBool(e.thing(ATOM) instanceof LWord));
+		e.bind(new Primitive("word?", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return toBool(a[0] instanceof LWord);
 			}
 		}, ATOM);
-		e.bind(new LWord(LWord.Type.Prim, "list?") {
-			public void eval(Environment e) {
-				e.output(toBool(e.thing(ATOM) instanceof LList));
+		e.bind(new Primitive("list?", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return toBool(a[0] instanceof LList);
 			}
 		}, ATOM);
-		e.bind(new LWord(LWord.Type.Prim, "num?") {
-			public void eval(Environment e) {
-				e.output(toBool(e.thing(ATOM) instanceof LNumber));
+		e.bind(new Primitive("num?", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return toBool(a[0] instanceof LNumber);
 			}
 		}, ATOM);
-		e.bind(new LWord(LWord.Type.Prim, "asname") {
-			public void eval(Environment e) {
-				e.output(new LWord(LWord.Type.Name, word(e, WORD).value));
+		e.bind(new Primitive("asname", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LWord(LWord.Type.Name, word(e, a[0]).value);
 			}
 		}, WORD);
-		e.bind(new LWord(LWord.Type.Prim, "asvalue") {
-			public void eval(Environment e) {
-				e.output(new LWord(LWord.Type.Value, word(e, WORD).value));
+		e.bind(new Primitive("asvalue", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LWord(LWord.Type.Value, word(e, a[0]).value);
 			}
 		}, WORD);
-		e.bind(new LWord(LWord.Type.Prim, "ascall") {
-			public void eval(Environment e) {
-				e.output(new LWord(LWord.Type.Call, word(e, WORD).value));
+		e.bind(new Primitive("ascall", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LWord(LWord.Type.Call, word(e, a[0]).value);
 			}
 		}, WORD);
 
 
 		// list manipulation:
 
-		e.bind(new LWord(LWord.Type.Prim, "size") {
-			public void eval(Environment e) {
-				e.output(new LNumber(list(e, LIST).size()));
+		e.bind(new Primitive("size", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return new LNumber(list(e, a[0]).size());
 			}
 		}, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "first") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).first());
+		e.bind(new Primitive("first", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[0]).first();
 			}
 		}, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "last") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).last());
+		e.bind(new Primitive("last", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[0]).last();
 			}
 		}, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "butfirst") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).butFirst());
+		e.bind(new Primitive("butfirst", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[0]).butFirst();
 			}
 		}, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "butlast") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).butLast());
+		e.bind(new Primitive("butlast", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[0]).butLast();
 			}
 		}, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "flatten") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).flatten());
+		e.bind(new Primitive("flatten", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[0]).flatten();
 			}
 		}, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "item") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).item(num(e, INDEX)));
+		e.bind(new Primitive("item", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[1]).item(num(e, a[0]));
 			}
 		}, INDEX, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "fput") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).fput(e.thing(ATOM)));
+		e.bind(new Primitive("fput", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[1]).fput(a[0]);
 			}
 		}, ATOM, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "lput") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).lput(e.thing(ATOM)));
+		e.bind(new Primitive("lput", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[1]).lput(a[0]);
 			}
 		}, ATOM, LIST);
-		e.bind(new LWord(LWord.Type.Prim, "join") {
-			public void eval(Environment e) {
-				e.output(list(e, A).join(list(e, B)));
+		e.bind(new Primitive("join", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[0]).join(list(e, a[1]));
 			}
 		}, A, B);
-		e.bind(new LWord(LWord.Type.Prim, "member") {
-			public void eval(Environment e) {
-				e.output(list(e, LIST).member(e.thing(ATOM)));
+		e.bind(new Primitive("member", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				return list(e, a[1]).member(a[0]);
 			}
 		}, ATOM, LIST);
 
@@ -198,18 +213,18 @@ public class Primitives {
 				e.output(e.thing(word(e, WORD)));
 			}
 		}, WORD);
-		e.bind(new LWord(LWord.Type.Prim, "bind") {
-			public void eval(Environment e) {
-				LList body = list(e, BODY);
-				LList ret = new LList(body, list(e, ARGUMENTS));
+		e.bind(new Primitive("bind", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				LList body = list(e, a[1]);
+				LList ret = new LList(body, list(e, a[0]));
 				ret.sourceText = body.sourceText;
-				e.output(ret);
+				return ret;
 			}
 		}, ARGUMENTS, BODY);
-		e.bind(new LWord(LWord.Type.Prim, "args") {
-			public void eval(Environment e) {
-				LList code = list(e, LIST);
-				e.output(code.arguments != null ? code.arguments : new LList());
+		e.bind(new Primitive("args", true) {
+			public LAtom apply(Environment e, LAtom[] a) {
+				LList code = list(e, a[0]);
+				return code.arguments != null ? code.arguments : new LList();
 			}
 		}, LIST);
 
@@ -218,69 +233,63 @@ public class Primitives {
 
 		e.bind(new LWord(LWord.Type.Prim, "stop") {
 			public void eval(Environment e) {
-				e.scopes.pop();
+				e.pop();
 				while(!e.scopes.peek().procedure || prim(e.scopes.peek().code)) {
 					if (e.scopes.size() <= 1) {
 						throw new RuntimeError(e, RuntimeError.Type.OutsideProcedure, "stop");
 					}
-					e.scopes.pop();
+					e.pop();
 				}
 
-				if (e.tracers.size() > 0) {
-					String name = e.getName(e.scopes.peek().code).toString();
-					if (name.startsWith("'")) { name = name.substring(1); }
-					for(Tracer tracer : e.tracers) { tracer.stop(name, false); }
+				if (e.tracing) {
+					e.trace(TraceBuffer.Kind.Stop, e.scopes.peek().code, false, null, null, null, 0);
 				}
 
-				e.scopes.pop();
+				e.pop();
 			}
 		});
 		e.bind(new LWord(LWord.Type.Prim, "output") {
 			public void eval(Environment e) {
 				LAtom r = e.thing(VALUE);
-				e.scopes.pop();
+				e.pop();
 				while(!e.scopes.peek().procedure || prim(e.scopes.peek().code)) {
 					if (e.scopes.size() <= 1) {
 						throw new RuntimeError(e, RuntimeError.Type.OutsideProcedure, "output");
 					}
-					e.scopes.pop();
+					e.pop();
 				}
 
-				if (e.tracers.size() > 0) {
-					String name = e.getName(e.scopes.peek().code).toString();
-					if (name.startsWith("'")) { name = name.substring(1); }
-					for(Tracer tracer : e.tracers) { tracer.output(name, r, false); }
+				if (e.tracing) {
+					e.trace(TraceBuffer.Kind.Output, e.scopes.peek().code, false, r, null, null, 0);
 				}
 
-				e.scopes.pop();
+				e.pop();
 				e.value(r);
 			}
 		}, VALUE);
-		e.bind(new LWord(LWord.Type.Prim, "run") {
-			public void eval(Environment e) {
-				e.push(list(e, BODY), false);
+		e.bind(new Primitive("run") {
+			public LAtom apply(Environment e, LAtom[] a) {
+				e.push(list(e, a[0]), false);
+				return null;
 			}
 		}, BODY);
-		e.bind(new LWord(LWord.Type.Prim, "if") {
-			public void eval(Environment e) {
-				if (bool(e.thing(CONDITION))) { e.push(list(e, BODY), false); }
+		e.bind(new Primitive("if") {
+			public LAtom apply(Environment e, LAtom[] a) {
+				if (bool(a[0])) { e.push(list(e, a[1]), false); }
+				return null;
 			}
 		}, CONDITION, BODY);
-		e.bind(new LWord(LWord.Type.Prim, "unless") {
-			public void eval(Environment e) {
-				if (!bool(e.thing(CONDITION))) { e.push(list(e, BODY), false); }
+		e.bind(new Primitive("unless") {
+			public LAtom apply(Environment e, LAtom[] a) {
+				if (!bool(a[0])) { e.push(list(e, a[1]), false); }
+				return null;
 			}
 		}, CONDITION, BODY);
-		e.bind(new LWord(LWord.Type.Prim, "repeat") {
-			public void eval(Environment e) {
-				int index = num(e, COUNT);
-				if (index == 0) {
-					e.scopes.pop();
-					return;
-				}
-				e.scopes.peek().bindings.put(COUNT, new LNumber(index - 1));
-				e.loop();
-				e.push(list(e, BODY), false);
+		e.bind(new Primitive("repeat") {
+			public LAtom apply(Environment e, LAtom[] a) {
+				int count = num(e, a[0]);
+				if (count > 0) { e.repeat(list(e, a[1]), count); }
+				return null;
 			}
 		}, COUNT, BODY);
 
@@ -313,12 +322,26 @@ public class Primitives {
 		return true;
 	}
 
-	static LWord word(Environment e, LAtom o) {
+	/**
+	* Cast an LAtom to an LWord, throwing errors as appropriate.
+	* Useful for checking the arguments of a {@link com.bme.logo.Primitive}.
+	*
+	* @param e the Environment in which the check is performed.
+	* @param o the LAtom to cast.
+	**/
+	public static LWord word(Environment e, LAtom o) {
 		if (o instanceof LWord) { return (LWord)o; }
 		throw new RuntimeError(e, RuntimeError.Type.TypeMismatch, o, "word");
 	}
 
-	static LList list(Environment e, LAtom o) {
+	/**
+	* Cast an LAtom to an LList, throwing errors as appropriate.
+	* Useful for checking the arguments of a {@link com.bme.logo.Primitive}.
+	*
+	* @param e the Environment in which the check is performed.
+	* @param o the LAtom to cast.
+	**/
+	public static LList list(Environment e, LAtom o) {
 		if (o instanceof LList) { return (LList)o; }
 		throw new RuntimeError(e, RuntimeError.Type.TypeMismatch, o, "list");
 	}
@@ -332,12 +355,24 @@ public class Primitives {
 	**/
 	public static int num(Environment e, LWord key) {
 		LAtom o = e.thing(key);
+		return num(e, o);
+	}
+
+	/**
+	* Cast an LAtom to an LNumber and extract its value,
+	* throwing errors as appropriate.
+	* Useful for checking the arguments of a {@link com.bme.logo.Primitive}.
+	*
+	* @param e the Environment in which the check is performed.
+	* @param o the LAtom to cast.
+	**/
+	public static int num(Environment e, LAtom o) {
 		if (o instanceof LNumber) { return ((LNumber)o).value; }
 		throw new RuntimeError(e, RuntimeError.Type.TypeMismatch, o, "number");
 	}
 
-	private static int nonzero(Environment e, LWord key) {
-		int ret = num(e, key);
+	private static int nonzero(Environment e, LAtom o) {
+		int ret = num(e, o);
 		if (ret == 0) { throw new RuntimeError(e, RuntimeError.Type.DivideByZero); }
 		return ret;
 	}
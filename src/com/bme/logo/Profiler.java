@@ -0,0 +1,268 @@
+package com.bme.logo;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* <p>A Profiler measures where an Environment spends its execution ticks.
+* It is attached with {@link com.bme.logo.Environment#addTraceConsumer}
+* and follows procedure calls and returns as they happen. For each procedure
+* it records the number of calls, the ticks spent in the procedure itself
+* (self ticks), the ticks spent in the procedure and everything it called
+* (total ticks) and the deepest scope stack it was called at.</p>
+*
+* <p>Ticks spent outside any procedure are attributed to a
+* pseudo-procedure named {@link #TOP_LEVEL}. Primitives are counted
+* as they are called, but their ticks belong to their caller.
+* Since every tick is accounted for, the profile is exact
+* rather than sampled, though attaching a Profiler disables
+* linked and compiled code like any other form of tracing.
+* The ticks it reports are therefore those of the Interpreter,
+* which may be more than the same program uses when it is not
+* traced. See {@link com.bme.logo.Limits#ticks}.</p>
+*
+* @author John Earnest
+**/
+
+public class Profiler extends TraceBuffer.Consumer {
+
+	/**
+	* The name under which ticks spent outside of any procedure are reported.
+	**/
+	public static final String TOP_LEVEL = "(top level)";
+
+	/**
+	* The measurements for a single procedure.
+	**/
+	public static class Entry {
+		/** The name of the procedure. **/
+		public final String name;
+		/** True if the procedure is a primitive. **/
+		public boolean primitive;
+		/** The number of times the procedure has been called. **/
+		public long calls;
+		/** The ticks spent executing the body of the procedure itself. **/
+		public long self;
+		/** The ticks spent from each outermost call of the procedure until it returned. **/
+		public long total;
+		/** The greatest depth of the scope stack at which the procedure has been called. **/
+		public int depth;
+
+		// the number of activations of this procedure on the stack:
+		int active;
+
+		Entry(String name) {
+			this.name = name;
+		}
+	}
+
+	// a node in the tree of every call stack observed:
+	private static class Node {
+		final Entry entry;
+		final Node parent;
+		Node[] children = new Node[0];
+		long self;
+
+		Node(Entry entry, Node parent) {
+			this.entry  = entry;
+			this.parent = parent;
+		}
+
+		Node child(Entry e) {
+			for(Node c : children) {
+				if (c.entry == e) { return c; }
+			}
+			Node[] n = new Node[children.length + 1];
+			System.arraycopy(children, 0, n, 0, children.length);
+			Node ret = n[children.length] = new Node(e, this);
+			children = n;
+			return ret;
+		}
+	}
+
+	// measurements, indexed by procedure identifier:
+	private Entry[] entries = new Entry[64];
+	private final Entry top = new Entry(TOP_LEVEL);
+	private final Node root = new Node(top, null);
+
+	// the stack of active procedures and the tick each began on:
+	private Node[] stack = new Node[16];
+	private long[] began = new long[16];
+	private int size = 0;
+
+	private Node current = root;
+	private long last = -1;
+
+	/**
+	* Construct a new, empty Profiler.
+	**/
+	public Profiler() {}
+
+	public void event(TraceBuffer.Event e) {
+		long tick = e.tick();
+		if (last >= 0) {
+			current.self       += tick - last;
+			current.entry.self += tick - last;
+		}
+		last = tick;
+
+		switch(e.kind()) {
+			case Begin:
+				// a previous program may have halted with an error:
+				unwind(tick);
+				break;
+			case End:
+				unwind(tick);
+				break;
+			case Call:
+				call(entry(e, false), tick, e.depth());
+				break;
+			case TailCall:
+				if (size > 0) { ret(tick); }
+				call(entry(e, false), tick, e.depth());
+				break;
+			case CallPrimitive:
+				Entry p = entry(e, true);
+				p.calls++;
+				p.depth = Math.max(p.depth, e.depth());
+				break;
+			case Output:
+			case Stop:
+				if (size > 0) { ret(tick); }
+				break;
+			default:
+				break;
+		}
+	}
+
+	private Entry entry(TraceBuffer.Event e, boolean primitive) {
+		int id = e.procedure();
+		if (id >= entries.length) {
+			Entry[] n = new Entry[Math.max(entries.length * 2, id + 1)];
+			System.arraycopy(entries, 0, n, 0, entries.length);
+			entries = n;
+		}
+		if (entries[id] == null) {
+			entries[id] = new Entry(e.name());
+			entries[id].primitive = primitive;
+		}
+		return entries[id];
+	}
+
+	private void call(Entry entry, long tick, int depth) {
+		if (size == stack.length) {
+			Node[] s = new Node[size * 2];
+			long[] b = new long[size * 2];
+			System.arraycopy(stack, 0, s, 0, size);
+			System.arraycopy(began, 0, b, 0, size);
+			stack = s;
+			began = b;
+		}
+		current = current.child(entry);
+		stack[size] = current;
+		began[size] = tick;
+		size++;
+		entry.calls++;
+		entry.active++;
+		entry.depth = Math.max(entry.depth, depth);
+	}
+
+	private void ret(long tick) {
+		size--;
+		Node n = stack[size];
+		stack[size] = null;
+		n.entry.active--;
+		// recursive calls are already covered by the outermost one:
+		if (n.entry.active == 0) { n.entry.total += tick - began[size]; }
+		current = n.parent;
+	}
+
+	private void unwind(long tick) {
+		while(size > 0) { ret(tick); }
+		current = root;
+	}
+
+	/**
+	* Return a copy of the measurements for every procedure which
+	* has been called, and for {@link #TOP_LEVEL}, sorted by self
+	* ticks from most to least.
+	**/
+	public List<Entry> entries() {
+		// the top level is active for the whole run:
+		Entry t = new Entry(TOP_LEVEL);
+		t.self  = top.self;
+		t.total = top.self;
+		for(Entry e : entries) { if (e != null) { t.total += e.self; } }
+
+		// procedures bound under the same name are reported together:
+		Map<String, Entry> named = new LinkedHashMap<String, Entry>();
+		named.put(TOP_LEVEL, t);
+		for(Entry e : entries) {
+			if (e == null) { continue; }
+			Entry n = named.get(e.name);
+			if (n == null) {
+				n = new Entry(e.name);
+				n.primitive = e.primitive;
+				named.put(e.name, n);
+			}
+			n.calls += e.calls;
+			n.self  += e.self;
+			n.total += e.total;
+			n.depth  = Math.max(n.depth, e.depth);
+		}
+		List<Entry> ret = new ArrayList<Entry>(named.values());
+		Collections.sort(ret, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				if (a.self != b.self) { return a.self > b.self ? -1 : 1; }
+				if (a.calls != b.calls) { return a.calls > b.calls ? -1 : 1; }
+				return a.name.compareTo(b.name);
+			}
+		});
+		return ret;
+	}
+
+	/**
+	* Write the self ticks of every call stack which has been observed,
+	* in the folded format read by flame graph tools. Each line names
+	* the procedures on a stack, outermost first, separated by semicolons
+	* and followed by a space and a number of ticks.
+	*
+	* @param out the stream to write to.
+	**/
+	public void writeFolded(PrintStream out) {
+		folded(out, root, new StringBuilder());
+		out.flush();
+	}
+
+	private void folded(PrintStream out, Node n, StringBuilder path) {
+		int length = path.length();
+		if (length > 0) { path.append(';'); }
+		path.append(n.entry.name.replace(';', ':'));
+		if (n.self > 0) { out.format("%s %d%n", path, n.self); }
+		for(Node c : n.children) { folded(out, c, path); }
+		path.setLength(length);
+	}
+
+	/**
+	* Print a table of the measurements for every procedure,
+	* sorted by self ticks from most to least.
+	*
+	* @param out the stream to write to.
+	**/
+	public void writeSummary(PrintStream out) {
+		List<Entry> entries = entries();
+		long ticks = 0;
+		for(Entry e : entries) { ticks += e.self; }
+		out.format("%-24s %10s %12s %7s %12s %7s %6s%n", "procedure", "calls", "self", "", "total", "", "depth");
+		for(Entry e : entries) {
+			String name = e.primitive ? e.name + " (primitive)" : e.name;
+			out.format("%-24s %10d %12d %6.2f%% %12d %6.2f%% %6d%n",
+				name, e.calls,
+				e.self,  ticks == 0 ? 0.0 : 100.0 * e.self  / ticks,
+				e.total, ticks == 0 ? 0.0 : 100.0 * e.total / ticks,
+				e.depth
+			);
+		}
+		out.flush();
+	}
+}
@@ -18,7 +18,13 @@ public class RuntimeError extends LogoError {
 	/** The arguments related to this runtime error type. **/
 	public final Object[] args;
 
-	/** A list of the wordnames in the stack trace which lead to this exception. **/
+	/**
+	* A list of the wordnames in the stack trace which lead to this exception,
+	* innermost first. The names are captured when the error occurs, using
+	* the name each procedure remembers when it is still bound to it, and
+	* are only formatted when the trace is printed.
+	* See {@link com.bme.logo.Limits#traceDepth}.
+	**/
 	public final List<LAtom> trace;
 
 	/**
@@ -32,7 +38,9 @@ public class RuntimeError extends LogoError {
 		super(String.format(errorType.format, args));
 		this.type  = errorType;
 		this.args  = args;
-		this.trace = e.trace();
+		this.trace = new Trace(e, e.frames(e.limits.traceDepth));
+		Metrics m = e.metrics;
+		if (m != null) { m.error(errorType); }
 	}
 
 	public static enum Type {
@@ -45,9 +53,31 @@ public class RuntimeError extends LogoError {
 		OutsideProcedure  ("I can't %s; I'm not running a procedure!"),
 		DivideByZero      ("I cannot divide by zero."),
 		TypeMismatch      ("'%s' is not a %s!"),
-		OutOfMemory       ("Ran out of memory.");
+		OutOfMemory       ("Ran out of memory."),
+		OutOfTicks        ("Ran out of ticks."),
+		OutOfAtoms        ("Ran out of atoms."),
+		OutOfTime         ("Ran out of time.");
 
 		public final String format;
 		private Type(String format) { this.format = format; }
 	}
-}
\ No newline at end of file
+}
+
+// a stack trace, holding the names of the procedures on the
+// stack as they were bound when it was captured.
+class Trace extends AbstractList<LAtom> {
+	private final LAtom[] names;
+
+	Trace(Environment env, LList[] frames) {
+		names = new LAtom[frames.length];
+		for(int z = 0; z < names.length; z++) { names[z] = env.getName(frames[z]); }
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public LAtom get(int index) {
+		return names[index];
+	}
+}
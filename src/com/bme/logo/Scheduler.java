@@ -0,0 +1,221 @@
+package com.bme.logo;
+
+import java.util.*;
+
+/**
+* <p>A Scheduler runs many Environments on a small, fixed set of
+* carrier threads. Each Environment runs for a quantum of ticks
+* at a time before it is returned to the back of a queue, so
+* every program makes progress no matter how long the others run.</p>
+*
+* <p>An Environment which is paused by a primitive is set aside
+* until {@link com.bme.logo.Environment#resume} is called, which may be
+* done from any thread. When a program completes or fails, the
+* Environment is released from the Scheduler and its {@link Listener}
+* is notified. The ticks each Environment has consumed are available
+* from {@link com.bme.logo.Environment#ticks}, which is brought up
+* to date at the end of each quantum.</p>
+*
+* <p>An Environment must not be run in any other way while
+* it belongs to a Scheduler. Environments run concurrently,
+* so any primitives or Tracers they share must be thread-safe.</p>
+*
+* @author John Earnest
+**/
+
+public class Scheduler {
+
+	/**
+	* A Listener receives notifications about the progress of
+	* the programs running in a Scheduler. These methods are
+	* called on carrier threads and should return promptly.
+	* Anything they throw is passed to the uncaught exception
+	* handler of the carrier thread, which goes on running programs.
+	**/
+	public static abstract class Listener {
+		/**
+		* Called when a program completes successfully.
+		*
+		* @param e the Environment which ran the program.
+		**/
+		public void completed(Environment e) {}
+
+		/**
+		* Called when a program is halted by an exception.
+		* This is usually a {@link com.bme.logo.RuntimeError},
+		* but primitives may throw anything, and Java code may
+		* throw an Error such as a StackOverflowError.
+		* The Environment has already been reset.
+		*
+		* @param e the Environment which ran the program.
+		* @param error the exception which halted the program.
+		**/
+		public void failed(Environment e, Throwable error) {}
+
+		/**
+		* Called when a program has been paused and set aside.
+		*
+		* @param e the Environment which has been paused.
+		**/
+		public void paused(Environment e) {}
+	}
+
+	private static final int QUEUED  = 0;
+	private static final int RUNNING = 1;
+	private static final int PARKED  = 2;
+
+	private final int quantum;
+	private final Thread[] carriers;
+
+	// guarded by this:
+	private final LinkedList<Task> ready = new LinkedList<Task>();
+	private final Map<Environment, Task> tasks = new HashMap<Environment, Task>();
+	private boolean running = true;
+
+	/**
+	* Construct a new Scheduler and start its carrier threads.
+	*
+	* @param carriers the number of threads used to run programs.
+	* @param quantum the number of ticks an Environment may run before yielding.
+	**/
+	public Scheduler(int carriers, int quantum) {
+		if (carriers < 1 || quantum < 1) { throw new IllegalArgumentException(); }
+		this.quantum  = quantum;
+		this.carriers = new Thread[carriers];
+		for(int z = 0; z < carriers; z++) {
+			this.carriers[z] = new Thread(new Runnable() {
+				public void run() { carry(); }
+			}, "logo-carrier-" + z);
+			this.carriers[z].setDaemon(true);
+			this.carriers[z].start();
+		}
+	}
+
+	/**
+	* Begin running a program in an Environment.
+	* See {@link com.bme.logo.Interpreter#init}.
+	*
+	* @param code a List of words to execute.
+	* @param e an environment within which to execute the program.
+	* @param listener a Listener to notify of the program's progress, or null.
+	**/
+	public void submit(LList code, Environment e, Listener listener) {
+		synchronized(this) {
+			if (!running)            { throw new IllegalStateException("Scheduler has been shut down."); }
+			if (tasks.containsKey(e)) { throw new IllegalStateException("Environment is already scheduled."); }
+			Interpreter.init(code, e);
+			Task t = new Task(e, listener == null ? new Listener() {} : listener);
+			tasks.put(e, t);
+			e.scheduler = this;
+			if (e.paused) { t.state = PARKED; return; }
+			ready.addLast(t);
+			notify();
+		}
+	}
+
+	/**
+	* Return the number of Environments currently
+	* running, waiting to run or paused in this Scheduler.
+	**/
+	public synchronized int size() {
+		return tasks.size();
+	}
+
+	/**
+	* Stop the carrier threads once they have finished their
+	* current quanta and wait for them to exit. Environments
+	* which have not completed are left as they are.
+	**/
+	public void shutdown() {
+		synchronized(this) {
+			running = false;
+			notifyAll();
+		}
+		for(Thread t : carriers) {
+			try { t.join(); }
+			catch(InterruptedException ex) { Thread.currentThread().interrupt(); return; }
+		}
+	}
+
+	// called by Environment.resume():
+	synchronized void resumed(Environment e) {
+		Task t = tasks.get(e);
+		if (t == null || t.state != PARKED) { return; }
+		t.state = QUEUED;
+		ready.addLast(t);
+		notify();
+	}
+
+	private void carry() {
+		while(true) {
+			Task t;
+			synchronized(this) {
+				while(running && ready.isEmpty()) {
+					try { wait(); }
+					catch(InterruptedException ex) { return; }
+				}
+				if (!running) { return; }
+				t = ready.removeFirst();
+				t.state = RUNNING;
+			}
+			run(t);
+		}
+	}
+
+	private void run(Task t) {
+		Environment e = t.env;
+		boolean more;
+		try {
+			more = Interpreter.runUntil(e, quantum);
+		}
+		catch(Throwable error) {
+			release(t);
+			e.reset();
+			try { t.listener.failed(e, error); }
+			catch(Throwable ex) { misbehaved(ex); }
+			return;
+		}
+		if (!more) {
+			release(t);
+			try { t.listener.completed(e); }
+			catch(Throwable ex) { misbehaved(ex); }
+			return;
+		}
+		synchronized(this) {
+			// a resume() may have arrived since the quantum ended,
+			// so the pause flag must be checked while holding the lock:
+			if (!e.paused) {
+				t.state = QUEUED;
+				ready.addLast(t);
+				return;
+			}
+			t.state = PARKED;
+		}
+		try { t.listener.paused(e); }
+		catch(Throwable ex) { misbehaved(ex); }
+	}
+
+	// a Listener which throws must not take its carrier thread
+	// down with it, stranding every program waiting to run, so
+	// the exception is passed to the thread's handler instead:
+	private static void misbehaved(Throwable ex) {
+		Thread t = Thread.currentThread();
+		t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+	}
+
+	private synchronized void release(Task t) {
+		tasks.remove(t.env);
+		t.env.scheduler = null;
+	}
+
+	private static class Task {
+		final Environment env;
+		final Listener listener;
+		int state = QUEUED;
+
+		Task(Environment env, Listener listener) {
+			this.env      = env;
+			this.listener = listener;
+		}
+	}
+}
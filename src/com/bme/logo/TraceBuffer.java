@@ -0,0 +1,283 @@
+package com.bme.logo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* <p>A TraceBuffer records execution events from an Environment into a
+* ring buffer allocated in advance, so that programs may be traced
+* without building maps or strings as they run. Each record holds the
+* kind of event, the tick at which it happened, the procedure involved
+* and references to its arguments or result.</p>
+*
+* <p>Records are written by the thread running the Environment and read
+* in batches by a consumer, usually on another thread, by calling
+* {@link #drain}. If the consumer falls behind and the buffer fills up,
+* new records are discarded and counted rather than slowing the program;
+* see {@link #dropped}.</p>
+*
+* <p>Tracing disables linked and compiled code, so traced programs
+* run at the speed of the Interpreter.</p>
+*
+* @author John Earnest
+**/
+
+public class TraceBuffer {
+
+	/**
+	* The kinds of events which may be recorded.
+	**/
+	public enum Kind {
+		/** A program has been started.                         **/ Begin,
+		/** A program has completed successfully.               **/ End,
+		/** A procedure has been called.                        **/ Call,
+		/** A procedure has been called in place of its caller. **/ TailCall,
+		/** A primitive procedure has been called.              **/ CallPrimitive,
+		/** A procedure has returned a value.                   **/ Output,
+		/** A procedure has returned without a value.           **/ Stop,
+		/** A procedure has been defined by a 'to' block.       **/ Define
+	}
+
+	/**
+	* A Consumer receives the records drained from a TraceBuffer.
+	**/
+	public static abstract class Consumer {
+		/**
+		* Called for each record, in the order they were written.
+		* The Event is reused for every record, and is only
+		* valid until this method returns.
+		*
+		* @param event a view of the record.
+		**/
+		public abstract void event(Event event);
+	}
+
+	/**
+	* An Event is a view of a single trace record.
+	**/
+	public static final class Event {
+		Kind kind;
+		long tick;
+		int depth;
+		int procedure;
+		String name;
+		boolean implicit;
+		LAtom value;
+		LList names;
+		LAtom[] args;
+		int start;
+		int count;
+		int mask;
+
+		Event() {}
+
+		void set(Kind kind, long tick, int depth, int procedure, String name, boolean implicit, LAtom value) {
+			this.kind      = kind;
+			this.tick      = tick;
+			this.depth     = depth;
+			this.procedure = procedure;
+			this.name      = name;
+			this.implicit  = implicit;
+			this.value     = value;
+		}
+
+		void arguments(LList names, LAtom[] args, int start, int count, int mask) {
+			this.names = names;
+			this.args  = args;
+			this.start = start;
+			this.count = count;
+			this.mask  = mask;
+		}
+
+		/** Return the kind of this event. **/
+		public Kind kind() { return kind; }
+
+		/** Return the number of ticks the Environment had executed when this event happened. **/
+		public long tick() { return tick; }
+
+		/**
+		* Return the number of scopes on the stack of the Environment
+		* when this event happened, including the global scope and the
+		* scope of any procedure which has just been called.
+		**/
+		public int depth() { return depth; }
+
+		/**
+		* Return a number identifying the procedure involved in this event,
+		* which is the same for every event involving that procedure,
+		* or 0 if there is none.
+		**/
+		public int procedure() { return procedure; }
+
+		/**
+		* Return the name of the procedure involved in this event,
+		* or the name of the procedure being defined, or null.
+		**/
+		public String name() { return name; }
+
+		/**
+		* Return true if a procedure returned by reaching the end of its
+		* body rather than through 'output' or 'stop'.
+		**/
+		public boolean implicit() { return implicit; }
+
+		/** Return the value returned by a procedure, or null. **/
+		public LAtom value() { return value; }
+
+		/** Return the number of arguments supplied to a procedure. **/
+		public int arguments() { return count; }
+
+		/**
+		* Return the name of an argument supplied to a procedure.
+		*
+		* @param index the position of the argument.
+		**/
+		public LAtom argumentName(int index) { return names.item(index); }
+
+		/**
+		* Return the value of an argument supplied to a procedure.
+		*
+		* @param index the position of the argument.
+		**/
+		public LAtom argument(int index) {
+			if (index < 0 || index >= count) { throw new IndexOutOfBoundsException(); }
+			return args[(start + index) & mask];
+		}
+	}
+
+	// procedure identifiers are shared by every buffer:
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private final int mask;
+	private final Kind   [] kinds;
+	private final long   [] ticks;
+	private final int    [] depths;
+	private final int    [] procedures;
+	private final String [] names;
+	private final boolean[] implicits;
+	private final LAtom  [] values;
+	private final LList  [] argNames;
+	private final int    [] argStarts;
+	private final int    [] argCounts;
+
+	private final int argMask;
+	private final LAtom[] args;
+
+	// written only by the producer:
+	private volatile long head = 0;
+	private int argHead = 0;
+	private volatile long dropped = 0;
+
+	// written only by the consumer:
+	private volatile long tail = 0;
+	private volatile int argTail = 0;
+	private final Event event = new Event();
+
+	/**
+	* Construct a new TraceBuffer.
+	*
+	* @param capacity the number of records the buffer can hold, which is rounded up to a power of two.
+	**/
+	public TraceBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 24)) { throw new IllegalArgumentException(); }
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) { size *= 2; }
+		mask       = size - 1;
+		kinds      = new Kind   [size];
+		ticks      = new long   [size];
+		depths     = new int    [size];
+		procedures = new int    [size];
+		names      = new String [size];
+		implicits  = new boolean[size];
+		values     = new LAtom  [size];
+		argNames   = new LList  [size];
+		argStarts  = new int    [size];
+		argCounts  = new int    [size];
+		argMask    = size * 4 - 1;
+		args       = new LAtom  [size * 4];
+	}
+
+	static int id() {
+		return ids.incrementAndGet();
+	}
+
+	// called by the thread running the Environment:
+	void record(Kind kind, long tick, int depth, int procedure, String name, boolean implicit,
+	            LAtom value, LList argumentNames, LAtom[] vals, int count) {
+		long h = head;
+		if (h - tail > mask || argHead + count - argTail > argMask + 1) {
+			dropped++;
+			return;
+		}
+		int i = (int)h & mask;
+		kinds     [i] = kind;
+		ticks     [i] = tick;
+		depths    [i] = depth;
+		procedures[i] = procedure;
+		names     [i] = name;
+		implicits [i] = implicit;
+		values    [i] = value;
+		argNames  [i] = argumentNames;
+		argStarts [i] = argHead;
+		argCounts [i] = count;
+		for(int z = 0; z < count; z++) {
+			args[(argHead + z) & argMask] = vals[z];
+		}
+		argHead += count;
+		// publish the record:
+		head = h + 1;
+	}
+
+	/**
+	* Pass every record in the buffer to a Consumer, in the order
+	* they were written, and remove them from the buffer.
+	* Records written while this method runs may or may not be included.
+	*
+	* @param c the Consumer to receive the records.
+	* @return the number of records consumed.
+	**/
+	public synchronized int drain(Consumer c) {
+		long first = tail;
+		long h = head;
+		long t = first;
+		int at = argTail;
+		try {
+			for(; t < h; t++) {
+				int i = (int)t & mask;
+				event.set(kinds[i], ticks[i], depths[i], procedures[i], names[i], implicits[i], values[i]);
+				event.arguments(argNames[i], args, argStarts[i], argCounts[i], argMask);
+				c.event(event);
+
+				// release references before the slot is reused:
+				for(int z = 0; z < argCounts[i]; z++) {
+					args[(argStarts[i] + z) & argMask] = null;
+				}
+				at = argStarts[i] + argCounts[i];
+				names   [i] = null;
+				values  [i] = null;
+				argNames[i] = null;
+			}
+		}
+		finally {
+			argTail = at;
+			tail = t;
+			event.set(null, 0, 0, 0, null, false, null);
+			event.arguments(null, null, 0, 0, 0);
+		}
+		return (int)(t - first);
+	}
+
+	/**
+	* Return the number of records waiting to be drained.
+	**/
+	public int size() {
+		return (int)(head - tail);
+	}
+
+	/**
+	* Return the number of records which have been discarded
+	* because the buffer was full.
+	**/
+	public long dropped() {
+		return dropped;
+	}
+}
@@ -72,3 +72,47 @@ public abstract class Tracer {
 	**/
 	public void define(String name) {}
 }
+
+// feeds the records of a TraceBuffer to a set of Tracers.
+class TracerAdapter extends TraceBuffer.Consumer {
+	private final Set<Tracer> tracers;
+
+	TracerAdapter(Set<Tracer> tracers) {
+		this.tracers = tracers;
+	}
+
+	public void event(TraceBuffer.Event e) {
+		switch(e.kind()) {
+			case Begin:
+				for(Tracer t : tracers) { t.begin(); }
+				break;
+			case End:
+				for(Tracer t : tracers) { t.end(); }
+				break;
+			case Call:
+			case TailCall:
+				Map<LAtom, LAtom> args = args(e);
+				for(Tracer t : tracers) { t.call(e.name(), args, e.kind() == TraceBuffer.Kind.TailCall); }
+				break;
+			case CallPrimitive:
+				Map<LAtom, LAtom> primArgs = args(e);
+				for(Tracer t : tracers) { t.callPrimitive(e.name(), primArgs); }
+				break;
+			case Output:
+				for(Tracer t : tracers) { t.output(e.name(), e.value(), e.implicit()); }
+				break;
+			case Stop:
+				for(Tracer t : tracers) { t.stop(e.name(), e.implicit()); }
+				break;
+			case Define:
+				for(Tracer t : tracers) { t.define(e.name()); }
+				break;
+		}
+	}
+
+	private static Map<LAtom, LAtom> args(TraceBuffer.Event e) {
+		Map<LAtom, LAtom> ret = new HashMap<LAtom, LAtom>();
+		for(int z = 0; z < e.arguments(); z++) { ret.put(e.argumentName(z), e.argument(z)); }
+		return ret;
+	}
+}
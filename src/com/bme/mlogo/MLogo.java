@@ -8,6 +8,9 @@ import static com.bme.logo.Primitives.*;
 public class MLogo {
 	static final String version = "MLogo 0.1";
 
+	static ParseCache cache = null;
+	static Profiler profiler = null;
+
 	public static void main(String[] a) {
 		List<String> args = new ArrayList<String>(Arrays.asList(a));
 
@@ -15,12 +18,22 @@ public class MLogo {
 		boolean interactive = false;
 		boolean turtles     = false;
 		boolean trace       = false;
+		boolean report      = false;
+		String  loadImage   = null;
+		String  saveImage   = null;
+		String  profile     = null;
 
 		for(int z = args.size() - 1; z >= 0; z--) {
+			if ("-l".equals(args.get(z)) && z+1 < args.size()) { loadImage = args.remove(z+1); args.remove(z); continue; }
+			if ("-w".equals(args.get(z)) && z+1 < args.size()) { saveImage = args.remove(z+1); args.remove(z); continue; }
+			if ("-P".equals(args.get(z)) && z+1 < args.size()) { profile   = args.remove(z+1); args.remove(z); continue; }
+			if ("-c".equals(args.get(z)) && z+1 < args.size()) { cache = new ParseCache(new File(args.remove(z+1))); args.remove(z); continue; }
 			if ("-h".equals(args.get(z))) { printHelp   = true; args.remove(z--); continue; }
 			if ("-i".equals(args.get(z))) { interactive = true; args.remove(z--); continue; }
 			if ("-t".equals(args.get(z))) { turtles     = true; args.remove(z--); continue; }
 			if ("-T".equals(args.get(z))) { trace       = true; args.remove(z--); continue; }
+			if ("-R".equals(args.get(z))) { Interpreter.COMPILE = false; args.remove(z--); continue; }
+			if ("-O".equals(args.get(z))) { report      = true; args.remove(z--); continue; }
 		}
 
 		if (printHelp) {
@@ -31,22 +44,44 @@ public class MLogo {
 			System.out.println(" i : provide an interactive REPL session");
 			System.out.println(" t : enable turtle graphics during batch mode");
 			System.out.println(" T : enable execution trace");
+			System.out.println(" R : disable compiled expressions (reference interpreter)");
+			System.out.println(" O : report the number of constant expressions folded");
+			System.out.println(" l <image> : start with the definitions saved in an image");
+			System.out.println(" w <image> : save the definitions to an image after running the files");
+			System.out.println(" c <dir>   : cache parsed files in a directory");
+			System.out.println(" P <file>  : profile execution, writing folded stacks to a file");
 			System.out.println();
 		}
 
-		Environment e = kernel();
-		primitiveIO(e, trace);
+		Environment e = loadImage == null ? kernel() : loadImage(loadImage);
+		primitiveIO(e, trace, System.out, System.in);
+		if (report) {
+			final Metrics metrics = e.metrics();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() { System.err.format("folded %d expressions.%n", metrics.getFolded()); }
+			});
+		}
+		if (profile != null) {
+			profiler = new Profiler();
+			e.addTraceConsumer(profiler);
+			final String profileFile = profile;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() { writeProfile(profileFile); }
+			});
+		}
 
 		// the repl always loads turtle graphics primitives,
 		// but they're strictly opt-in for batch mode.
 		if (turtles) {
 			TurtleGraphics t = new TurtleGraphics(e);
-			for(String fileName : args) { runFile(e, fileName, t); }
+			for(String fileName : args) { if (!runFile(e, fileName, t, System.out)) { System.exit(1); } }
+			if (saveImage != null) { saveImage(e, saveImage); }
 			if (interactive) { repl(e, t); }
 			else { System.exit(0); }
 		}
 		else {
-			for(String fileName : args) { runFile(e, fileName, null); }
+			for(String fileName : args) { if (!runFile(e, fileName, null, System.out)) { System.exit(1); } }
+			if (saveImage != null) { saveImage(e, saveImage); }
 			if (interactive) {
 				TurtleGraphics t = new TurtleGraphics(e);
 				repl(e, t);
@@ -109,17 +144,20 @@ public class MLogo {
 		}
 	}
 
-	private static void runFile(Environment env, String filename, TurtleGraphics t) {
+	// run a file, printing any errors to a stream,
+	// and return false if it could not be completed:
+	static boolean runFile(Environment env, String filename, TurtleGraphics t, PrintStream out) {
 		try {
-			LList code = Parser.parse(loadFile(filename));
+			String source = loadFile(filename);
+			LList code = cache == null ? Parser.parse(source) : cache.parse(source);
 			if (t == null) {
 				Interpreter.run(code, env);
-				return;
+				return true;
 			}
 			Interpreter.init(code, env);
 			while(true) {
 				// execute until the interpreter is paused
-				if (!Interpreter.runUntil(env)) { return; }
+				if (!Interpreter.runUntil(env)) { return true; }
 				
 				// update the display until animation is complete
 				while(!t.update()) {
@@ -128,82 +166,114 @@ public class MLogo {
 				}
 			}
 		}
+		catch(IOException e) {
+			System.err.format("Unable to load file '%s'.%n", filename);
+			return false;
+		}
 		catch(SyntaxError e) {
-			System.out.format("%d: syntax error: %s%n", e.lineNumber, e.getMessage());
-			System.out.format("\t%s%n\t", e.line);
+			out.format("%d: syntax error: %s%n", e.lineNumber, e.getMessage());
+			out.format("\t%s%n\t", e.line);
 			for(int z = 0; z < e.lineIndex; z++) {
-				System.out.print(e.line.charAt(z) == '\t' ? '\t' : ' ');
+				out.print(e.line.charAt(z) == '\t' ? '\t' : ' ');
 			}
-			System.out.println("^");
-			System.exit(1);
+			out.println("^");
+			return false;
 		}
 		catch(RuntimeError e) {
-			System.out.format("runtime error: %s%n", e.getMessage());
+			out.format("runtime error: %s%n", e.getMessage());
 			for(LAtom atom : e.trace) {
-				System.out.format("\tin %s%n", atom);
+				out.format("\tin %s%n", atom);
 			}
-			System.exit(1);
+			return false;
 		}
 	}
 
-	private static String loadFile(String filename) {
+	private static void writeProfile(String filename) {
 		try {
-			Scanner in = new Scanner(new File(filename));
-			StringBuilder ret = new StringBuilder();
-			while(in.hasNextLine()) {
-				// this will conveniently convert platform-specific
-				// newlines into an internal unix-style convention:
-				ret.append(in.nextLine()+"\n");
-			}
-			// shave off the trailing newline we just inserted:
-			ret.deleteCharAt(ret.length()-1);
-			return ret.toString();
+			PrintStream out = new PrintStream(new FileOutputStream(filename));
+			profiler.writeFolded(out);
+			out.close();
 		}
 		catch(IOException e) {
-			System.err.format("Unable to load file '%s'.%n", filename);
+			System.err.format("Unable to write profile '%s'.%n", filename);
+		}
+		profiler.writeSummary(System.err);
+	}
+
+	private static Environment loadImage(String filename) {
+		try {
+			return new Environment(ImageFile.load(new File(filename), kernel()));
+		}
+		catch(IOException e) {
+			System.err.format("Unable to load image '%s': %s%n", filename, e.getMessage());
 			System.exit(1);
 			return null;
 		}
 	}
 
-	private static void primitiveIO(Environment e, boolean trace) {
+	private static void saveImage(Environment env, String filename) {
+		try {
+			ImageFile.save(env, new File(filename));
+		}
+		catch(IOException e) {
+			System.err.format("Unable to save image '%s'.%n", filename);
+			System.exit(1);
+		}
+	}
+
+	private static String loadFile(String filename) throws IOException {
+		Scanner in = new Scanner(new File(filename));
+		StringBuilder ret = new StringBuilder();
+		while(in.hasNextLine()) {
+			// this will conveniently convert platform-specific
+			// newlines into an internal unix-style convention:
+			ret.append(in.nextLine()+"\n");
+		}
+		in.close();
+		// shave off the trailing newline we just inserted:
+		ret.deleteCharAt(ret.length()-1);
+		return ret.toString();
+	}
+
+	// bind primitives which print to a stream and read from another:
+	static void primitiveIO(Environment e, boolean trace, final PrintStream out, InputStream input) {
 		final LWord a = new LWord(LWord.Type.Name, "argument1");
-		final Scanner in = new Scanner(System.in);
+		final Scanner in = new Scanner(input);
 
 		if (trace) {
 			e.addTracer(new Tracer() {
-				public void begin()  { System.out.println("tracer: begin."); }
-				public void end()    { System.out.println("tracer: end.");   }
-				//public void tick() { System.out.println("tracer: tick.");  }
+				public void begin()  { out.println("tracer: begin."); }
+				public void end()    { out.println("tracer: end.");   }
+				//public void tick() { out.println("tracer: tick.");  }
 
 				public void callPrimitive(String name, Map<LAtom, LAtom> args) {
-					System.out.format("trace: PRIM %s%s%n",
+					out.format("trace: PRIM %s%s%n",
 						name,
 						args.size() > 0 ? " " + args : ""
 					);
 				}
 				public void call(String name, Map<LAtom, LAtom> args, boolean tail) {
-					System.out.format("trace: CALL %s%s%s%n",
+					out.format("trace: CALL %s%s%s%n",
 						name,
 						args.size() > 0 ? " " + args : "",
 						tail ? " (tail)" : ""
 					);
 				}
 				public void output(String name, LAtom val, boolean implicit) {
-					System.out.format("trace: RETURN %s- %s%s%n", name, val, implicit ? " (implicit)" : "");
+					out.format("trace: RETURN %s- %s%s%n", name, val, implicit ? " (implicit)" : "");
 				}
 				public void stop(String name, boolean implicit) {
-					System.out.format("trace: STOP %s%s%n", name, implicit ? " (implicit)" : "");
+					out.format("trace: STOP %s%s%n", name, implicit ? " (implicit)" : "");
 				}
 				public void define(String name) {
-					System.out.format("trace: DEFINE %s%n", name);
+					out.format("trace: DEFINE %s%n", name);
 				}
 			});
 		}
 
 		e.bind(new LWord(LWord.Type.Prim, "version") {
 			public void eval(Environment e) {
-				System.out.println(MLogo.version);
+				out.println(MLogo.version);
 			}
 		});
 
@@ -211,9 +281,9 @@ public class MLogo {
 			public void eval(Environment e) {
 				List<LWord> words = new ArrayList<LWord>(e.words());
 				Collections.sort(words);
-				for(LWord word : words) { System.out.print(word + " "); }
-				System.out.println();
-				System.out.println();
+				for(LWord word : words) { out.print(word + " "); }
+				out.println();
+				out.println();
 			}
 		});
 
@@ -230,23 +300,23 @@ public class MLogo {
 
 		e.bind(new LWord(LWord.Type.Prim, "trace") {
 			public void eval(Environment e) {
-				System.out.println("trace: ");
+				out.println("trace: ");
 				for(LAtom s : e.trace()) {
-					System.out.println("\t" + s);
+					out.println("\t" + s);
 				}
-				System.out.println();
+				out.println();
 			}
 		});
 
 		e.bind(new LWord(LWord.Type.Prim, "print") {
 			public void eval(Environment e) {
-				System.out.println(e.thing(a));
+				out.println(e.thing(a));
 			}
 		}, a);
 
 		e.bind(new LWord(LWord.Type.Prim, "println") {
 			public void eval(Environment e) {
-				System.out.println();
+				out.println();
 			}
 		});
 
@@ -0,0 +1,843 @@
+package com.bme.mlogo;
+
+import com.bme.logo.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+/**
+* Runs the .logo files in the test directory within a single JVM,
+* in parallel, giving each its own Environment and output stream.
+* Like test.sh, the output of a program which completes is compared
+* to its .out file, and the output of a program which fails is compared
+* to its .err file. The time each test takes is recorded, and may be
+* saved and compared with a baseline to catch performance regressions.
+* A few checks of the Java API which can't be written as .logo files,
+* such as those of the Scheduler, are run alongside them.
+*
+* Tests share only state which is never written while a program runs:
+* the frozen kernel Layer, whose primitives keep no state of their own
+* and are not profiled, and the settings in MLogo and Interpreter,
+* which the runner leaves at their defaults. A test which does not
+* finish within TIMEOUT_SECONDS is reported as failed.
+*
+* <pre>
+* java -cp dist/MLogo.jar com.bme.mlogo.TestRunner [options] [file or directory...]
+*   -j threads   the number of tests to run at once (default: one per processor)
+*   -v           print the time taken by every test
+*   -o file      write the time taken by every test to a file
+*   -b file      compare the time taken by every test with a baseline file
+* </pre>
+**/
+
+public class TestRunner {
+
+	// tests which take this many times as long as the baseline,
+	// and at least SLOWER_MILLIS longer, are reported as slower:
+	private static final double SLOWER_FACTOR = 2.0;
+	private static final double SLOWER_MILLIS = 5.0;
+
+	// the longest any test may run before it is reported as failed:
+	private static final long TIMEOUT_SECONDS = 60;
+
+	public static void main(String[] a) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean verbose = false;
+		String output = null;
+		String baseline = null;
+		List<File> files = new ArrayList<File>();
+
+		for(int z = 0; z < a.length; z++) {
+			if      ("-j".equals(a[z]) && z + 1 < a.length) { threads  = Integer.parseInt(a[++z]); }
+			else if ("-o".equals(a[z]) && z + 1 < a.length) { output   = a[++z]; }
+			else if ("-b".equals(a[z]) && z + 1 < a.length) { baseline = a[++z]; }
+			else if ("-v".equals(a[z])) { verbose = true; }
+			else { files.addAll(tests(new File(a[z]))); }
+		}
+		if (files.isEmpty()) { files.addAll(tests(new File("test"))); }
+
+		System.out.println("mlogo interpreter tests...");
+		long start = System.nanoTime();
+		List<TestResult> results = run(files, Math.max(1, threads));
+		results.addAll(checks());
+		double elapsed = (System.nanoTime() - start) / 1e6;
+
+		int failed = 0;
+		for(TestResult r : results) {
+			if (r.report != null) {
+				System.out.print(r.report);
+				failed++;
+			}
+		}
+
+		Map<String, Double> base = baseline == null ? new HashMap<String, Double>() : read(new File(baseline));
+		for(TestResult r : results) {
+			Double old = base.get(r.name);
+			boolean slower = old != null && r.millis > old * SLOWER_FACTOR && r.millis - old > SLOWER_MILLIS;
+			if (verbose || slower) {
+				System.out.format("%-28s %10.2f ms%s%n",
+					r.name, r.millis,
+					old == null ? "" : String.format(" (baseline %.2f ms%s)", old, slower ? ", slower" : "")
+				);
+			}
+		}
+		if (output != null) { write(new File(output), results); }
+
+		System.out.format("%d tests in %.0f ms.%n", results.size(), elapsed);
+		if (failed > 0) {
+			System.out.format("%d of %d tests failed.%n", failed, results.size());
+			System.exit(1);
+		}
+		System.out.println("all tests successful!");
+		System.exit(0);
+	}
+
+	private static List<File> tests(File f) {
+		List<File> ret = new ArrayList<File>();
+		if (f.isDirectory()) {
+			File[] list = f.listFiles();
+			if (list != null) {
+				for(File c : list) {
+					if (c.isFile() && c.getName().endsWith(".logo")) { ret.add(c); }
+				}
+			}
+		}
+		else {
+			ret.add(f);
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	static List<TestResult> run(List<File> files, int threads) throws InterruptedException {
+		// a test which hangs must not keep the runner from exiting:
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "logo-test");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<TestResult>> futures = new ArrayList<Future<TestResult>>();
+			for(final File f : files) {
+				futures.add(pool.submit(new Callable<TestResult>() {
+					public TestResult call() { return test(f); }
+				}));
+			}
+			List<TestResult> ret = new ArrayList<TestResult>();
+			for(int z = 0; z < futures.size(); z++) {
+				String name = files.get(z).getName();
+				try {
+					ret.add(futures.get(z).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+				}
+				catch(TimeoutException e) {
+					futures.get(z).cancel(true);
+					ret.add(new TestResult(name, TIMEOUT_SECONDS * 1e3,
+						String.format("test %s did not finish within %d seconds.%n", name, TIMEOUT_SECONDS)
+					));
+				}
+				catch(ExecutionException e) {
+					ret.add(new TestResult(name, 0,
+						String.format("test %s failed unexpectedly:%n\t %s%n", name, e.getCause())
+					));
+				}
+			}
+			return ret;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	static TestResult test(File file) {
+		String name = file.getName();
+		String base = file.getPath().substring(0, file.getPath().length() - ".logo".length());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes, true);
+		Environment env = Primitives.kernel();
+		MLogo.primitiveIO(env, false, out, new ByteArrayInputStream(new byte[0]));
+		// a program which runs away fails with 'Ran out of time.':
+		Limits limits = env.limits().copy();
+		limits.deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+		env.setLimits(limits);
+
+		long start = System.nanoTime();
+		boolean ok;
+		try {
+			ok = MLogo.runFile(env, file.getPath(), null, out);
+		}
+		catch(RuntimeException e) {
+			// a primitive has failed, which would halt MLogo:
+			ok = false;
+		}
+		catch(StackOverflowError e) {
+			ok = false;
+		}
+		double millis = (System.nanoTime() - start) / 1e6;
+		out.flush();
+		byte[] observed = bytes.toByteArray();
+
+		File expected = new File(base + (ok ? ".out" : ".err"));
+		String report = null;
+		if (!ok && !expected.exists()) {
+			report = String.format("test %s failed unexpectedly:%n%s%n", name, indent(observed));
+		}
+		else {
+			byte[] wanted = expected.exists() ? readFile(expected) : null;
+			if (wanted == null || !Arrays.equals(wanted, observed)) {
+				report = String.format("%s mismatch in test %s!%nexpected: %n%s%nobserved: %n%s%n",
+					ok ? "output" : "error", name,
+					wanted == null ? "" : indent(wanted),
+					indent(observed)
+				);
+			}
+		}
+		return new TestResult(name, millis, report);
+	}
+
+	// checks of the Java API, run one at a time after the .logo files:
+	static List<TestResult> checks() {
+		List<TestResult> ret = new ArrayList<TestResult>();
+		ret.add(check("Scheduler", new Check() {
+			void run(List<String> problems) throws Exception { scheduler(problems); }
+		}));
+		ret.add(check("fork", new Check() {
+			void run(List<String> problems) { fork(problems); }
+		}));
+		ret.add(check("ImageFile", new Check() {
+			void run(List<String> problems) throws Exception { image(problems); }
+		}));
+		ret.add(check("ParseCache", new Check() {
+			void run(List<String> problems) throws Exception { parseCache(problems); }
+		}));
+		ret.add(check("TraceBuffer", new Check() {
+			void run(List<String> problems) { traceBuffer(problems); }
+		}));
+		ret.add(check("Profiler", new Check() {
+			void run(List<String> problems) throws Exception { profiler(problems); }
+		}));
+		ret.add(check("Limits", new Check() {
+			void run(List<String> problems) { limits(problems); }
+		}));
+		ret.add(check("Metrics", new Check() {
+			void run(List<String> problems) throws Exception { metrics(problems); }
+		}));
+		return ret;
+	}
+
+	static TestResult check(String name, Check check) {
+		List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+		long start = System.nanoTime();
+		try {
+			check.run(problems);
+		}
+		catch(Throwable t) {
+			problems.add("threw " + t);
+		}
+		double millis = (System.nanoTime() - start) / 1e6;
+
+		String report = null;
+		if (!problems.isEmpty()) {
+			StringBuilder r = new StringBuilder(String.format("check %s failed:%n", name));
+			for(String p : problems) { r.append("\t ").append(p).append(String.format("%n")); }
+			report = r.toString();
+		}
+		return new TestResult(name, millis, report);
+	}
+
+	// programs sharing a carrier thread must take turns, and every
+	// failure, even an Error thrown by a primitive, must be reported.
+	// a Listener which throws must not stop the programs behind it:
+	static void scheduler(final List<String> problems) throws InterruptedException {
+		final long limit = 1000000;
+		final Environment[] spinners = { Primitives.kernel(), Primitives.kernel() };
+		final Environment crasher = Primitives.kernel();
+		final CountDownLatch done = new CountDownLatch(3);
+
+		Scheduler scheduler = new Scheduler(1, 1000);
+		try {
+			Scheduler.Listener listener = new Scheduler.Listener() {
+				boolean first = true;
+
+				public void completed(Environment e) {
+					problems.add("a program which cannot complete completed.");
+					done.countDown();
+				}
+				public void failed(Environment e, Throwable error) {
+					if (e == crasher) {
+						if (!(error instanceof StackOverflowError)) { problems.add("the crash was reported as " + error); }
+					}
+					else if (!(error instanceof RuntimeError) || ((RuntimeError)error).type != RuntimeError.Type.OutOfTicks) {
+						problems.add("a spinning program failed with " + error);
+					}
+					else {
+						RuntimeError r = (RuntimeError)error;
+						if (r.trace.isEmpty() || !"'spin".equals(r.trace.get(0).toString())) {
+							problems.add("a spinning program failed in " + r.trace);
+						}
+						Environment other = e == spinners[0] ? spinners[1] : spinners[0];
+						if (first && other.ticks() < limit / 2) {
+							problems.add(String.format("one program ran %d ticks while the other ran %d.", e.ticks(), other.ticks()));
+						}
+						first = false;
+					}
+					done.countDown();
+				}
+			};
+			LList spin = Parser.parse("to spin :n\n\toutput spin (:n + 1)\nend\nspin 0\n");
+			for(Environment e : spinners) {
+				Limits l = e.limits().copy();
+				l.ticks = limit;
+				e.setLimits(l);
+				scheduler.submit(spin, e, listener);
+			}
+			crasher.bind(new Primitive("crash") {
+				public LAtom apply(Environment e, LAtom[] args) { throw new StackOverflowError(); }
+			});
+			scheduler.submit(Parser.parse("crash"), crasher, listener);
+
+			if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				problems.add("the programs did not finish.");
+			}
+			else if (scheduler.size() != 0) {
+				problems.add("programs remained in the scheduler.");
+			}
+		}
+		finally {
+			scheduler.shutdown();
+		}
+
+		// the exception thrown by the listener is handed to the
+		// carrier thread's handler, which is ours for the moment:
+		final List<Throwable> thrown = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread.UncaughtExceptionHandler old = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) { thrown.add(e); }
+		});
+		scheduler = new Scheduler(1, 1000);
+		try {
+			final CountDownLatch second = new CountDownLatch(1);
+			scheduler.submit(Parser.parse("make 'x 1"), Primitives.kernel(), new Scheduler.Listener() {
+				public void completed(Environment e) { throw new IllegalStateException("listener"); }
+			});
+			scheduler.submit(Parser.parse("make 'x 2"), Primitives.kernel(), new Scheduler.Listener() {
+				public void completed(Environment e) { second.countDown(); }
+			});
+			if (!second.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				problems.add("a program queued behind a throwing listener did not complete.");
+			}
+			else if (scheduler.size() != 0) {
+				problems.add("programs remained in the scheduler after a listener threw.");
+			}
+			else if (thrown.size() != 1 || !"listener".equals(thrown.get(0).getMessage())) {
+				problems.add("the listener's exception was reported as " + thrown);
+			}
+		}
+		finally {
+			scheduler.shutdown();
+			Thread.setDefaultUncaughtExceptionHandler(old);
+		}
+	}
+
+	// a forked Environment begins with its parent's globals, and
+	// neither can see the bindings the other makes afterwards:
+	static void fork(List<String> problems) {
+		Environment parent = Primitives.kernel();
+		exec(parent, "make 'x 1\nmake 'xs [1 2 3]\nto f\n\toutput 10\nend\n");
+		Environment child = parent.fork();
+		exec(child, "make 'y sum :x f\nmake 'x 2\nmake 'xs butfirst :xs\nto f\n\toutput 20\nend\n");
+		expect(problems, "the child's y", child, "y", "11");
+		expect(problems, "the child's x", child, "x", "2");
+		expect(problems, "the child's xs", child, "xs", "[2 3]");
+		expect(problems, "the parent's x", parent, "x", "1");
+		expect(problems, "the parent's xs", parent, "xs", "[1 2 3]");
+		if (parent.words().contains(new LWord(LWord.Type.Name, "y"))) {
+			problems.add("the child's binding of y is visible in the parent.");
+		}
+		exec(parent, "make 'z f");
+		expect(problems, "the parent's z", parent, "z", "10");
+
+		// later changes to the parent are seen only by later forks:
+		exec(parent, "make 'x 3");
+		expect(problems, "the child's x after the parent changed", child, "x", "2");
+		Environment second = parent.fork();
+		expect(problems, "a second fork's x", second, "x", "3");
+		second.erase(new LWord(LWord.Type.Name, "xs"));
+		expect(problems, "the parent's xs after a fork erased it", parent, "xs", "[1 2 3]");
+		Environment third = parent.fork();
+		expect(problems, "a third fork's xs", third, "xs", "[1 2 3]");
+
+		// a fork of a fork sees its parent's bindings, not the root's:
+		Environment grandchild = child.fork();
+		exec(grandchild, "make 'z f");
+		expect(problems, "the grandchild's z", grandchild, "z", "20");
+		expect(problems, "the grandchild's x", grandchild, "x", "2");
+	}
+
+	// an image must load the bindings it was saved with,
+	// and a damaged image must be refused as a whole:
+	static void image(List<String> problems) throws IOException {
+		Environment library = Primitives.kernel();
+		exec(library, "make 'greeting [hello world]\nto square :n\n\toutput product :n :n\nend\n");
+		File file = File.createTempFile("check", ".img");
+		try {
+			ImageFile.save(library, file);
+			Environment e = new Environment(ImageFile.load(file, Primitives.kernel()));
+			exec(e, "make 'x square 12");
+			expect(problems, "a procedure from the image", e, "x", "144");
+			expect(problems, "a value from the image", e, "greeting", "[hello world]");
+
+			// an image holding a single number ends with its index entry
+			// (offset, length and load), the data length, the checksum
+			// and five bytes of data:
+			Environment single = Primitives.kernel();
+			exec(single, "make 'n 5");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ImageFile.save(single, bytes);
+			byte[] good = bytes.toByteArray();
+			int end = good.length;
+			if (ByteBuffer.wrap(good).getInt(end - 13) != 5) {
+				problems.add("an image holding one number has an unexpected layout.");
+				return;
+			}
+			write(file, good);
+			e = new Environment(ImageFile.load(file, Primitives.kernel()));
+			expect(problems, "a number from the image", e, "n", "5");
+
+			byte[] data = good.clone();
+			data[end - 1] ^= 1;
+			corrupt(problems, "damaged data", file, data);
+
+			byte[] offset = good.clone();
+			ByteBuffer.wrap(offset).putInt(end - 25, -1);
+			corrupt(problems, "a negative offset", file, offset);
+
+			byte[] length = good.clone();
+			ByteBuffer.wrap(length).putInt(end - 21, 6);
+			corrupt(problems, "an entry longer than the data", file, length);
+
+			byte[] version = good.clone();
+			ByteBuffer.wrap(version).putInt(4, ImageFile.VERSION + 1);
+			corrupt(problems, "another version", file, version);
+
+			corrupt(problems, "a truncated image", file, Arrays.copyOf(good, end - 1));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	// source text is parsed once and then read from the cache,
+	// until its entry is damaged or the text changes. The counters
+	// must stay consistent when the cache is shared by threads:
+	static void parseCache(final List<String> problems) throws Exception {
+		File dir = File.createTempFile("check", ".cache");
+		dir.delete();
+		try {
+			final ParseCache cache = new ParseCache(dir);
+			final String source = "to double :n\n\toutput sum :n :n\nend\nmake 'x double 4\n";
+			String parsed = Parser.parse(source).toString();
+
+			counts(problems, "the first parse", cache, parsed.equals(cache.parse(source).toString()), 0, 1, 0);
+			counts(problems, "the second parse", cache, parsed.equals(cache.parse(source).toString()), 1, 1, 0);
+			Environment e = Primitives.kernel();
+			Interpreter.run(cache.parse(source), e);
+			expect(problems, "x from cached code", e, "x", "8");
+			counts(problems, "changed text", cache, cache.parse(source + "make 'y 1\n") != null, 2, 2, 0);
+
+			for(File f : dir.listFiles()) {
+				byte[] entry = readFile(f);
+				entry[entry.length - 1] ^= 1;
+				write(f, entry);
+			}
+			counts(problems, "a damaged entry", cache, parsed.equals(cache.parse(source).toString()), 2, 3, 1);
+			counts(problems, "a rewritten entry", cache, parsed.equals(cache.parse(source).toString()), 3, 3, 1);
+
+			Thread[] threads = new Thread[4];
+			for(int z = 0; z < threads.length; z++) {
+				threads[z] = new Thread() {
+					public void run() {
+						for(int i = 0; i < 250; i++) { cache.parse(source); }
+					}
+				};
+				threads[z].start();
+			}
+			for(Thread t : threads) { t.join(); }
+			if (cache.hits() + cache.misses() != 6 + 1000) {
+				problems.add(String.format("1006 parses counted %d hits and %d misses.", cache.hits(), cache.misses()));
+			}
+		}
+		finally {
+			File[] entries = dir.listFiles();
+			if (entries != null) { for(File f : entries) { f.delete(); } }
+			dir.delete();
+		}
+	}
+
+	// a full buffer keeps the oldest records and counts the rest
+	// as dropped, and has room again once it has been drained:
+	static void traceBuffer(List<String> problems) {
+		String source = "to count :n\n\tif equal? :n 0 [stop]\n\tcount (:n - 1)\nend\ncount 20\n";
+		TraceBuffer all = new TraceBuffer(1 << 16);
+		Environment e = Primitives.kernel();
+		e.addTraceBuffer(all);
+		exec(e, source);
+		final List<String> wanted = new ArrayList<String>();
+		all.drain(new TraceBuffer.Consumer() {
+			public void event(TraceBuffer.Event r) { wanted.add(r.kind() + " " + r.name()); }
+		});
+
+		// a capacity of 5 is rounded up to 8:
+		TraceBuffer small = new TraceBuffer(5);
+		e = Primitives.kernel();
+		e.addTraceBuffer(small);
+		exec(e, source);
+		if (wanted.size() <= 8) {
+			problems.add(String.format("the program recorded only %d events.", wanted.size()));
+			return;
+		}
+		if (small.size() != 8 || small.dropped() != wanted.size() - 8) {
+			problems.add(String.format("%d events left %d in the buffer and %d dropped, not 8 and %d.",
+				wanted.size(), small.size(), small.dropped(), wanted.size() - 8
+			));
+		}
+		final List<String> kept = new ArrayList<String>();
+		TraceBuffer.Consumer keep = new TraceBuffer.Consumer() {
+			public void event(TraceBuffer.Event r) { kept.add(r.kind() + " " + r.name()); }
+		};
+		int drained = small.drain(keep);
+		if (drained != 8 || !kept.equals(wanted.subList(0, 8))) {
+			problems.add(String.format("the buffer kept %s, not %s.", kept, wanted.subList(0, 8)));
+		}
+		if (small.size() != 0) {
+			problems.add(String.format("%d events remained after draining.", small.size()));
+		}
+
+		kept.clear();
+		exec(e, "make 'x 1");
+		small.drain(keep);
+		if (!Arrays.asList("Begin null", "CallPrimitive make", "End null").equals(kept)) {
+			problems.add(String.format("a drained buffer recorded %s.", kept));
+		}
+		if (small.dropped() != wanted.size() - 8) {
+			problems.add(String.format("a drained buffer dropped %d events.", small.dropped()));
+		}
+	}
+
+	// every tick belongs to exactly one procedure's self ticks,
+	// and recursive calls are counted once in the total:
+	static void profiler(List<String> problems) throws IOException {
+		Profiler profiler = new Profiler();
+		Environment e = Primitives.kernel();
+		e.addTraceConsumer(profiler);
+		exec(e,
+			"to less :n\n\toutput difference :n 1\nend\n" +
+			"to fact :n\n\tif equal? :n 0 [output 1]\n\toutput product :n fact less :n\nend\n" +
+			"make 'x fact 5\n"
+		);
+		expect(problems, "x", e, "x", "120");
+
+		Map<String, Profiler.Entry> entries = new HashMap<String, Profiler.Entry>();
+		long self = 0;
+		for(Profiler.Entry p : profiler.entries()) {
+			entries.put(p.name, p);
+			self += p.self;
+		}
+		Profiler.Entry top     = entries.get(Profiler.TOP_LEVEL);
+		Profiler.Entry fact    = entries.get("fact");
+		Profiler.Entry less    = entries.get("less");
+		Profiler.Entry product = entries.get("product");
+		if (top == null || fact == null || less == null || product == null) {
+			problems.add("the profile is missing entries: " + entries.keySet());
+			return;
+		}
+		if (fact.calls != 6 || less.calls != 5 || product.calls != 5) {
+			problems.add(String.format("fact, less and product were called %d, %d and %d times, not 6, 5 and 5.",
+				fact.calls, less.calls, product.calls
+			));
+		}
+		if (!product.primitive || fact.primitive) {
+			problems.add("primitives and procedures were confused.");
+		}
+		if (fact.self <= 0 || less.self <= 0 || product.self != 0) {
+			problems.add(String.format("fact, less and product had %d, %d and %d self ticks.",
+				fact.self, less.self, product.self
+			));
+		}
+		if (less.total != less.self) {
+			problems.add(String.format("less had %d total ticks but %d self ticks.", less.total, less.self));
+		}
+		if (fact.total != fact.self + less.self) {
+			problems.add(String.format("fact had %d total ticks, not %d.", fact.total, fact.self + less.self));
+		}
+		if (top.total != self || top.total != e.ticks()) {
+			problems.add(String.format("the top level had %d total ticks, but the profile had %d and the program ran %d.",
+				top.total, self, e.ticks()
+			));
+		}
+		if (fact.depth < 6) {
+			problems.add(String.format("fact was called at a depth of only %d.", fact.depth));
+		}
+
+		// the folded stacks must account for the same ticks:
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		profiler.writeFolded(new PrintStream(bytes, true, "UTF-8"));
+		long folded = 0;
+		boolean deep = false;
+		for(String line : new String(bytes.toByteArray(), "UTF-8").split("\n")) {
+			if (line.length() == 0) { continue; }
+			folded += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+			if (line.contains("fact;fact;fact;fact;fact;fact;less")) { problems.add("fact recursed too deeply: " + line); }
+			if (line.contains("fact;fact;fact;fact;fact;fact ")) { deep = true; }
+		}
+		if (folded != self) {
+			problems.add(String.format("the folded stacks held %d ticks, not %d.", folded, self));
+		}
+		if (!deep) {
+			problems.add("the innermost call of fact was not folded.");
+		}
+	}
+
+	// exceeding each limit must halt a program with its own error:
+	static void limits(List<String> problems) {
+		String deep = "to deep :n\n\toutput sum 1 deep (:n + 1)\nend\nmake 'x deep 0\n";
+		String grow = "make 'l []\nrepeat 1000 [make 'l fput 1 :l]\n";
+		String spin = "repeat 1000000 [make 'x 1]\n";
+
+		Limits l = new Limits();
+		l.frames = 50;
+		limit(problems, "frames", l, deep, RuntimeError.Type.StackOverflow);
+
+		l = new Limits();
+		l.load = 200;
+		limit(problems, "load", l, grow, RuntimeError.Type.OutOfMemory);
+
+		l = new Limits();
+		l.ticks = 500;
+		limit(problems, "ticks", l, spin, RuntimeError.Type.OutOfTicks);
+
+		l = new Limits();
+		l.load  = -1;
+		l.atoms = 200;
+		limit(problems, "atoms", l, grow, RuntimeError.Type.OutOfAtoms);
+
+		l = new Limits();
+		l.timeout(-1000);
+		limit(problems, "deadline", l, spin, RuntimeError.Type.OutOfTime);
+
+		l = new Limits();
+		l.traceDepth = 2;
+		RuntimeError r = limit(problems, "traceDepth", l,
+			"to down :n\n\tif equal? :n 0 [output quotient 1 0]\n\toutput sum 1 down (:n - 1)\nend\nmake 'x down 10\n",
+			RuntimeError.Type.DivideByZero
+		);
+		if (r != null && r.trace.size() != 2) {
+			problems.add(String.format("a traceDepth of 2 gave the trace %s.", r.trace));
+		}
+	}
+
+	// the counters of each environment are its own, and must
+	// agree with the program it ran:
+	static void metrics(List<String> problems) throws Exception {
+		Environment e = Primitives.kernel();
+		Metrics m = e.metrics();
+		exec(e,
+			"to twice :n\n\toutput sum :n :n\nend\nrepeat 10 [make 'x twice 3]\n" +
+			"to down :n\n\tif equal? :n 0 [stop]\n\tdown (:n - 1)\nend\ndown 5\n"
+		);
+		Map<String, Long> prims = m.getPrimitiveCalls();
+		if (!Long.valueOf(10).equals(prims.get("sum")) || !Long.valueOf(1).equals(prims.get("repeat"))) {
+			problems.add("the primitives were counted as " + prims);
+		}
+		if (m.getCalls() != 11 || m.getTailCalls() != 5) {
+			problems.add(String.format("%d calls and %d tail calls were counted, not 11 and 5.", m.getCalls(), m.getTailCalls()));
+		}
+		if (m.getTicks() != e.ticks() || m.getTicks() == 0) {
+			problems.add(String.format("the metrics counted %d ticks, but the program ran %d.", m.getTicks(), e.ticks()));
+		}
+		if (m.getDepth() != 1 || m.getPeakDepth() < 3) {
+			problems.add(String.format("the depth was %d and the peak %d.", m.getDepth(), m.getPeakDepth()));
+		}
+		try {
+			exec(e, "make 'y quotient 1 0");
+			problems.add("dividing by zero succeeded.");
+		}
+		catch(RuntimeError r) {
+			e.reset();
+		}
+		if (!Collections.singletonMap("DivideByZero", 1L).equals(m.getErrors())) {
+			problems.add("the errors were counted as " + m.getErrors());
+		}
+		e.pause();
+		e.pause();
+		e.resume();
+		if (m.getPauses() != 1 || m.getResumes() != 1) {
+			problems.add(String.format("%d pauses and %d resumes were counted, not 1 and 1.", m.getPauses(), m.getResumes()));
+		}
+
+		// another environment shares the kernel's primitives, but not their counts:
+		prims = m.getPrimitiveCalls();
+		Environment other = Primitives.kernel();
+		Metrics n = other.metrics();
+		MLogo.primitiveIO(other, false, new PrintStream(new ByteArrayOutputStream()), new ByteArrayInputStream(new byte[0]));
+		exec(other, "print sum 1 2");
+		Map<String, Long> wanted = new TreeMap<String, Long>();
+		wanted.put("print", 1L);
+		wanted.put("sum", 1L);
+		if (!wanted.equals(n.getPrimitiveCalls())) {
+			problems.add("another environment counted its primitives as " + n.getPrimitiveCalls());
+		}
+		if (!prims.equals(m.getPrimitiveCalls())) {
+			problems.add("running another environment changed the counts to " + m.getPrimitiveCalls());
+		}
+
+		ObjectName name = m.register("check");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (!Long.valueOf(e.ticks()).equals(server.getAttribute(name, "Ticks"))) {
+			problems.add("the MBean reported " + server.getAttribute(name, "Ticks") + " ticks.");
+		}
+		m.unregister();
+		if (server.isRegistered(name)) {
+			problems.add("the MBean remained registered.");
+		}
+	}
+
+	private static RuntimeError limit(List<String> problems, String field, Limits limits, String code, RuntimeError.Type wanted) {
+		Environment e = Primitives.kernel();
+		e.setLimits(limits);
+		try {
+			exec(e, code);
+			problems.add(String.format("a program limited by %s completed.", field));
+		}
+		catch(RuntimeError r) {
+			if (r.type == wanted) { return r; }
+			problems.add(String.format("a program limited by %s failed with %s, not %s.", field, r.type, wanted));
+		}
+		return null;
+	}
+
+	private static void counts(List<String> problems, String what, ParseCache cache, boolean same, int hits, int misses, int rejected) {
+		if (!same) { problems.add(String.format("%s produced different code.", what)); }
+		if (cache.hits() != hits || cache.misses() != misses || cache.rejected() != rejected) {
+			problems.add(String.format("after %s there were %d hits, %d misses and %d rejected, not %d, %d and %d.",
+				what, cache.hits(), cache.misses(), cache.rejected(), hits, misses, rejected
+			));
+		}
+	}
+
+	private static void corrupt(List<String> problems, String what, File file, byte[] image) throws IOException {
+		write(file, image);
+		try {
+			ImageFile.load(file, Primitives.kernel());
+			problems.add(String.format("an image with %s was loaded.", what));
+		}
+		catch(IOException e) {
+			// expected.
+		}
+		catch(RuntimeException e) {
+			problems.add(String.format("an image with %s threw %s.", what, e));
+		}
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void exec(Environment e, String code) {
+		Interpreter.run(Parser.parse(code), e);
+	}
+
+	private static void expect(List<String> problems, String what, Environment e, String name, String wanted) {
+		LAtom value;
+		try {
+			value = e.thing(new LWord(LWord.Type.Name, name));
+		}
+		catch(RuntimeError r) {
+			problems.add(String.format("%s was unbound.", what));
+			return;
+		}
+		if (!wanted.equals(value.toString())) {
+			problems.add(String.format("%s was %s, not %s.", what, value, wanted));
+		}
+	}
+
+	// indent every line as test.sh does:
+	private static String indent(byte[] text) {
+		StringBuilder ret = new StringBuilder();
+		Scanner in = new Scanner(new ByteArrayInputStream(text));
+		while(in.hasNextLine()) { ret.append("\t ").append(in.nextLine()).append(String.format("%n")); }
+		return ret.toString();
+	}
+
+	private static byte[] readFile(File file) {
+		try {
+			RandomAccessFile f = new RandomAccessFile(file, "r");
+			try {
+				byte[] ret = new byte[(int)f.length()];
+				f.readFully(ret);
+				return ret;
+			}
+			finally {
+				f.close();
+			}
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+
+	// timings are kept as tab-separated lines of test name and milliseconds:
+	private static void write(File file, List<TestResult> results) throws IOException {
+		PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+		try {
+			for(TestResult r : results) { out.format(Locale.ROOT, "%s\t%f%n", r.name, r.millis); }
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static Map<String, Double> read(File file) throws IOException {
+		Map<String, Double> ret = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			for(String line = in.readLine(); line != null; line = in.readLine()) {
+				String[] f = line.split("\t");
+				if (f.length == 2) { ret.put(f[0], Double.parseDouble(f[1])); }
+			}
+		}
+		finally {
+			in.close();
+		}
+		return ret;
+	}
+}
+
+class TestResult {
+	final String name;
+	final double millis;
+	// a description of the failure, or null if the test passed:
+	final String report;
+
+	TestResult(String name, double millis, String report) {
+		this.name   = name;
+		this.millis = millis;
+		this.report = report;
+	}
+}
+
+abstract class Check {
+	// add a description of each problem found:
+	abstract void run(List<String> problems) throws Exception;
+}